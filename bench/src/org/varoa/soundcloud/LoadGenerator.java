@@ -0,0 +1,488 @@
+package org.varoa.soundcloud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Drives a {@link BasicHttpServer} end to end over loopback, to reproduce
+ * scaling limits on a single box without any network or browser.
+ *
+ * Each simulated uploader POSTs multipart bodies to /upload in a loop while
+ * polling /progress for its session, and each downloader fetches a file of
+ * its own from /download. Every user connects from its own 127.x.y.z
+ * address, so it gets a session of its own as a real client would. At the
+ * end throughput, p50/p99/p999 latency and error rate are reported per
+ * endpoint.
+ *
+ * Unless --target is given the server is started in this JVM on a free
+ * port, with storage in a temporary folder. Options:
+ *
+ * <pre>
+ * --uploaders N     concurrent uploaders (8)
+ * --downloaders N   concurrent downloaders (8)
+ * --size BYTES      size of each uploaded and downloaded file (1048576)
+ * --duration SECS   how long to run (30)
+ * --poll MS         time between progress polls of each uploader (200)
+ * --target HOST:PORT  load an already running server instead
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private static final String BOUNDARY = "----LoadGeneratorBoundary0123456789";
+	private static final int TIMEOUT = 60000;
+
+	private int uploaders = 8;
+	private int downloaders = 8;
+	private int size = 1024 * 1024;
+	private int duration = 30;
+	private int poll = 200;
+	private String host = "127.0.0.1";
+	private int port = -1;
+	private byte[] content;
+	private volatile long deadline;
+	private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+	private final AtomicInteger uploads = new AtomicInteger();
+
+	public static void main(final String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		generator.parseArgs(args);
+		generator.run();
+	}
+
+	private void parseArgs(final String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if ("--uploaders".equals(args[i])) {
+				this.uploaders = Integer.parseInt(value);
+			} else if ("--downloaders".equals(args[i])) {
+				this.downloaders = Integer.parseInt(value);
+			} else if ("--size".equals(args[i])) {
+				this.size = Integer.parseInt(value);
+			} else if ("--duration".equals(args[i])) {
+				this.duration = Integer.parseInt(value);
+			} else if ("--poll".equals(args[i])) {
+				this.poll = Integer.parseInt(value);
+			} else if ("--target".equals(args[i])) {
+				this.host = value.substring(0, value.lastIndexOf(':'));
+				this.port = Integer.parseInt(value.substring(value.lastIndexOf(':') + 1));
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+	}
+
+	private void run() throws Exception {
+		if (this.port < 0) {
+			this.startServer();
+		}
+		this.content = new byte[this.size];
+		new Random(42).nextBytes(this.content);
+		this.stats.put("upload", new Stats());
+		this.stats.put("progress", new Stats());
+		this.stats.put("download", new Stats());
+
+		List<Thread> threads = new ArrayList<Thread>();
+		final CountDownLatch ready = new CountDownLatch(this.downloaders);
+		int user = 0;
+		for (int i = 0; i < this.downloaders; i++) {
+			final InetAddress address = address(user++);
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					LoadGenerator.this.download(address, ready);
+				}
+			}, "Downloader " + i));
+		}
+		for (int i = 0; i < this.uploaders; i++) {
+			final InetAddress address = address(user++);
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					LoadGenerator.this.upload(address);
+				}
+			}, "Uploader " + i));
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					LoadGenerator.this.pollProgress(address);
+				}
+			}, "Poller " + i));
+		}
+		System.out.println("Loading " + this.host + ":" + this.port + " with " + this.uploaders + " uploaders and "
+				+ this.downloaders + " downloaders of " + this.size + " bytes for " + this.duration + "s");
+		// far enough not to stop anything while downloaders seed their files
+		this.deadline = Long.MAX_VALUE;
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		ready.await();
+		for (Stats s : this.stats.values()) {
+			s.reset();
+		}
+		long start = System.nanoTime();
+		this.deadline = System.currentTimeMillis() + this.duration * 1000L;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		this.report((System.nanoTime() - start) / 1e9);
+		System.exit(0);
+	}
+
+	/**
+	 * Start the server in this JVM, on a free port and with its own storage.
+	 */
+	private void startServer() throws Exception {
+		ServerSocket free = new ServerSocket(0);
+		this.port = free.getLocalPort();
+		free.close();
+		File storage = Files.createTempDirectory("superuploader-load").toFile();
+		System.setProperty("server.port", Integer.toString(this.port));
+		System.setProperty("storage.dir", storage.getPath());
+		final String config = System.getProperty("config", ServerConfig.DEFAULT_FILE);
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BasicHttpServer.main(new String[] { config });
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "Server");
+		server.setDaemon(true);
+		server.start();
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (true) {
+			Socket probe = new Socket();
+			try {
+				probe.connect(new InetSocketAddress(this.host, this.port), 1000);
+				break;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > giveUp) {
+					throw new IOException("Server didn't start on port " + this.port, e);
+				}
+				Thread.sleep(100);
+			} finally {
+				probe.close();
+			}
+		}
+		// per request logging would be what gets measured otherwise
+		Logger.getRootLogger().setLevel(Level.WARN);
+		System.out.println("Server started, storage in " + storage);
+	}
+
+	private void upload(final InetAddress address) {
+		Stats s = this.stats.get("upload");
+		Client client = new Client(address);
+		byte[] suffix = ascii("\r\n--" + BOUNDARY + "--\r\n");
+		while (System.currentTimeMillis() < this.deadline) {
+			byte[] prefix = ascii("--" + BOUNDARY + "\r\n"
+					+ "Content-Disposition: form-data; name=\"file\"; filename=\"load" + this.uploads.incrementAndGet() + ".bin\"\r\n"
+					+ "Content-Type: application/octet-stream\r\n\r\n");
+			String contentType = "Content-Type: multipart/form-data; boundary=" + BOUNDARY;
+			this.time(s, client, "POST", "/upload", contentType, prefix, this.content, suffix);
+		}
+		client.close();
+	}
+
+	private void pollProgress(final InetAddress address) {
+		Stats s = this.stats.get("progress");
+		Client client = new Client(address);
+		while (System.currentTimeMillis() < this.deadline) {
+			this.time(s, client, "GET", "/progress", null);
+			try {
+				Thread.sleep(this.poll);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		client.close();
+	}
+
+	private void download(final InetAddress address, final CountDownLatch ready) {
+		Stats s = this.stats.get("download");
+		Client client = new Client(address);
+		String name = "seed-" + address.getHostAddress() + ".bin";
+		byte[] prefix = ascii("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"" + name + "\"\r\n\r\n");
+		this.time(s, client, "POST", "/upload", "Content-Type: multipart/form-data; boundary=" + BOUNDARY,
+				prefix, this.content, ascii("\r\n--" + BOUNDARY + "--\r\n"));
+		ready.countDown();
+		while (System.currentTimeMillis() < this.deadline) {
+			this.time(s, client, "GET", "/download/" + name, null);
+		}
+		client.close();
+	}
+
+	/**
+	 * Send a request and record how it went.
+	 */
+	private void time(final Stats s, final Client client, final String method, final String path, final String header, final byte[]... body) {
+		long start = System.nanoTime();
+		int status;
+		long received = 0;
+		try {
+			status = client.request(method, path, header, body);
+			received = client.getReceived();
+		} catch (IOException e) {
+			status = -1;
+			client.close();
+		}
+		long sent = 0;
+		for (byte[] part : body) {
+			sent += part.length;
+		}
+		s.record(System.nanoTime() - start, status, sent, received);
+	}
+
+	private void report(final double seconds) {
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-10s %9s %9s %8s %9s %9s %9s %9s %9s",
+				"endpoint", "requests", "req/s", "errors", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Map.Entry<String, Stats> entry : this.stats.entrySet()) {
+			Stats s = entry.getValue();
+			long[] latencies = s.getLatencies();
+			Arrays.sort(latencies);
+			System.out.println(String.format(Locale.US, "%-10s %9d %9.1f %7.2f%% %9.2f %9.2f %9.2f %9.2f %9.2f",
+					entry.getKey(), latencies.length, latencies.length / seconds,
+					(latencies.length == 0) ? 0 : 100.0 * s.getErrors() / latencies.length,
+					s.getBytes() / seconds / (1024 * 1024),
+					percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+					percentile(latencies, 1)));
+			for (Map.Entry<Integer, Integer> status : s.getStatuses().entrySet()) {
+				System.out.println("             " + ((status.getKey() < 0) ? "I/O error" : "HTTP " + status.getKey()) + ": " + status.getValue());
+			}
+		}
+	}
+
+	private static double percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+
+	/**
+	 * A loopback address of its own for each user, 127.0.0.2 onwards.
+	 */
+	private static InetAddress address(final int user) throws IOException {
+		int n = user + 2;
+		return InetAddress.getByAddress(new byte[] { 127, (byte) (n >> 16), (byte) (n >> 8), (byte) n });
+	}
+
+	private static byte[] ascii(final String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Latencies and outcomes of the requests to one endpoint.
+	 */
+	private static class Stats {
+
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private long errors = 0;
+		private long bytes = 0;
+		private final Map<Integer, Integer> statuses = new LinkedHashMap<Integer, Integer>();
+
+		synchronized void record(final long latency, final int status, final long sent, final long received) {
+			if (this.count == this.latencies.length) {
+				this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+			}
+			this.latencies[this.count++] = latency;
+			if (status < 200 || status >= 400) {
+				this.errors++;
+				Integer seen = this.statuses.get(status);
+				this.statuses.put(status, (seen == null) ? 1 : seen + 1);
+			} else {
+				this.bytes += sent + received;
+			}
+		}
+
+		synchronized void reset() {
+			this.count = 0;
+			this.errors = 0;
+			this.bytes = 0;
+			this.statuses.clear();
+		}
+
+		synchronized long[] getLatencies() {
+			return Arrays.copyOf(this.latencies, this.count);
+		}
+
+		synchronized long getErrors() {
+			return this.errors;
+		}
+
+		synchronized long getBytes() {
+			return this.bytes;
+		}
+
+		synchronized Map<Integer, Integer> getStatuses() {
+			return new LinkedHashMap<Integer, Integer>(this.statuses);
+		}
+	}
+
+	/**
+	 * Bare HTTP/1.1 client keeping its connection open between requests,
+	 * bound to the address of the user it plays.
+	 */
+	private class Client {
+
+		private final InetAddress local;
+		private final byte[] scratch = new byte[64 * 1024];
+		private Socket socket = null;
+		private InputStream in = null;
+		private OutputStream out = null;
+		private long received = 0;
+
+		Client(final InetAddress local) {
+			this.local = local;
+		}
+
+		long getReceived() {
+			return this.received;
+		}
+
+		/**
+		 * @return the status code
+		 */
+		int request(final String method, final String path, final String header, final byte[]... body) throws IOException {
+			if (this.socket == null) {
+				this.socket = new Socket();
+				this.socket.bind(new InetSocketAddress(this.local, 0));
+				this.socket.connect(new InetSocketAddress(LoadGenerator.this.host, LoadGenerator.this.port), TIMEOUT);
+				this.socket.setSoTimeout(TIMEOUT);
+				this.socket.setTcpNoDelay(true);
+				this.in = new BufferedInputStream(this.socket.getInputStream(), 16 * 1024);
+				this.out = new BufferedOutputStream(this.socket.getOutputStream(), 64 * 1024);
+			}
+			long length = 0;
+			for (byte[] part : body) {
+				length += part.length;
+			}
+			StringBuilder sb = new StringBuilder();
+			sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+			sb.append("Host: ").append(LoadGenerator.this.host).append(':').append(LoadGenerator.this.port).append("\r\n");
+			if (header != null) {
+				sb.append(header).append("\r\n");
+			}
+			if (body.length > 0) {
+				sb.append("Content-Length: ").append(length).append("\r\n");
+			}
+			sb.append("\r\n");
+			this.out.write(ascii(sb.toString()));
+			for (byte[] part : body) {
+				this.out.write(part);
+			}
+			this.out.flush();
+			return this.readResponse("HEAD".equals(method));
+		}
+
+		private int readResponse(final boolean head) throws IOException {
+			String statusLine = this.readLine();
+			int status = Integer.parseInt(statusLine.split(" ")[1]);
+			long length = -1;
+			boolean chunked = false;
+			boolean close = false;
+			String line;
+			while ((line = this.readLine()).length() > 0) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					length = Long.parseLong(value);
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					chunked = "chunked".equalsIgnoreCase(value);
+				} else if ("Connection".equalsIgnoreCase(name)) {
+					close = "close".equalsIgnoreCase(value);
+				}
+			}
+			this.received = 0;
+			if (head || status == 204 || status == 304) {
+				// no body
+			} else if (chunked) {
+				long chunk;
+				while ((chunk = Long.parseLong(this.readLine().split(";")[0].trim(), 16)) > 0) {
+					this.skip(chunk);
+					this.readLine();
+				}
+				while (this.readLine().length() > 0) {
+					// trailers
+				}
+			} else if (length >= 0) {
+				this.skip(length);
+			} else {
+				this.skip(Long.MAX_VALUE);
+				close = true;
+			}
+			if (close) {
+				this.close();
+			}
+			return status;
+		}
+
+		private void skip(final long length) throws IOException {
+			long remaining = length;
+			while (remaining > 0) {
+				int read = this.in.read(this.scratch, 0, (int) Math.min(this.scratch.length, remaining));
+				if (read < 0) {
+					if (length == Long.MAX_VALUE) {
+						return;
+					}
+					throw new IOException("Connection closed in the middle of a response");
+				}
+				remaining -= read;
+				this.received += read;
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = this.in.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException("Connection closed");
+				}
+				if (c != '\r') {
+					sb.append((char) c);
+				}
+			}
+			return sb.toString();
+		}
+
+		void close() {
+			if (this.socket != null) {
+				try {
+					this.socket.close();
+				} catch (IOException e) {
+					// gone anyway
+				}
+				this.socket = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.varoa.soundcloud;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Session id derivation: the first request of a connection, which digests
+ * the client address, and every later one, which should only be a lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionExtractorBenchmark {
+
+	private HttpInetConnection conn;
+	private HttpContext cached;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.conn = new Connection(InetAddress.getByName("192.168.1.42"));
+		this.cached = this.newContext();
+		SessionExtractor.extractSession(this.cached);
+	}
+
+	private HttpContext newContext() {
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ExecutionContext.HTTP_CONNECTION, this.conn);
+		return context;
+	}
+
+	@Benchmark
+	public String newConnection() {
+		return SessionExtractor.extractSession(this.newContext());
+	}
+
+	@Benchmark
+	public String sameConnection() {
+		return SessionExtractor.extractSession(this.cached);
+	}
+
+	/**
+	 * Just enough of a connection to have a remote address.
+	 */
+	private static class Connection implements HttpInetConnection {
+
+		private final InetAddress remoteAddress;
+
+		Connection(final InetAddress remoteAddress) {
+			this.remoteAddress = remoteAddress;
+		}
+
+		public InetAddress getRemoteAddress() {
+			return this.remoteAddress;
+		}
+
+		public int getRemotePort() {
+			return 54321;
+		}
+
+		public InetAddress getLocalAddress() {
+			return null;
+		}
+
+		public int getLocalPort() {
+			return 80;
+		}
+
+		public void close() {
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public boolean isStale() {
+			return false;
+		}
+
+		public void setSocketTimeout(final int timeout) {
+		}
+
+		public int getSocketTimeout() {
+			return 0;
+		}
+
+		public void shutdown() {
+		}
+
+		public HttpConnectionMetrics getMetrics() {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the {@link MultipartParser} over a whole body, fed in
+ * network sized pieces as the I/O thread would. Random content makes the
+ * boundary search do real work instead of skipping over runs of zeros.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+
+	private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+	/**
+	 * Size of the file part in bytes.
+	 */
+	@Param({ "65536", "1048576", "16777216" })
+	public int fileSize;
+
+	/**
+	 * Bytes handed to the parser at a time.
+	 */
+	@Param({ "8192", "65536" })
+	public int chunkSize;
+
+	private byte[] body;
+
+	@Setup
+	public void setUp() throws IOException {
+		byte[] content = new byte[this.fileSize];
+		new Random(42).nextBytes(content);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(this.fileSize + 1024);
+		out.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+				+ "A song\r\n"
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"song.wav\"\r\n"
+				+ "Content-Type: audio/wav\r\n\r\n").getBytes("ISO-8859-1"));
+		out.write(content);
+		out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+		this.body = out.toByteArray();
+	}
+
+	@Benchmark
+	public long parse(final Blackhole bh) throws IOException {
+		CountingHandler handler = new CountingHandler(bh);
+		MultipartParser parser = new MultipartParser(BOUNDARY.getBytes("ISO-8859-1"), MultipartParser.DEFAULT_BUFFER_SIZE, handler);
+		ByteBuffer src = ByteBuffer.wrap(this.body);
+		for (int offset = 0; offset < this.body.length; offset += this.chunkSize) {
+			src.limit(Math.min(this.body.length, offset + this.chunkSize));
+			src.position(offset);
+			parser.feed(src);
+		}
+		if (!parser.isComplete() || handler.count != this.fileSize) {
+			throw new IllegalStateException("Parsed " + handler.count + " of " + this.fileSize + " bytes");
+		}
+		return handler.count;
+	}
+
+	private static class CountingHandler implements MultipartParser.Handler {
+
+		private final Blackhole bh;
+		private long count = 0;
+
+		CountingHandler(final Blackhole bh) {
+			this.bh = bh;
+		}
+
+		public boolean startPart(final String headers) {
+			return UploadRequestConsumer.extractFileName(headers) != null;
+		}
+
+		public void partContent(final ByteBuffer data) {
+			this.count += data.remaining();
+			this.bh.consume(data.get(data.limit() - 1));
+			data.position(data.limit());
+		}
+
+		public void endPart() {
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.varoa.soundcloud.SuperUploaderException;
+
+/**
+ * Cost of storing upload data through {@link UploadRequest}: the sequential
+ * path used by multipart and raw bodies, which counts bytes, computes the
+ * {@link Checksums} and the digest of the {@link BlobStore} and notifies the
+ * tracker, and the positional one used by resumable chunks. Files go to the
+ * temp folder and are recreated every iteration so they don't grow without
+ * bound.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadRequestBenchmark {
+
+	/**
+	 * Bytes per write, as read from the socket in one go.
+	 */
+	@Param({ "8192", "65536" })
+	public int bufferSize;
+
+	/**
+	 * Whether content is digested for deduplication.
+	 */
+	@Param({ "false", "true" })
+	public boolean dedup;
+
+	/**
+	 * Checksums computed inline, as in uploads.checksums.
+	 */
+	@Param({ "", "crc32c", "crc32c,sha-256" })
+	public String checksums;
+
+	private File docRoot;
+	private UploadRequest uploadReq;
+	private ByteBuffer buffer;
+	private long position;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		this.docRoot = Files.createTempDirectory("superuploader-bench").toFile();
+		byte[] data = new byte[this.bufferSize];
+		new Random(42).nextBytes(data);
+		this.buffer = ByteBuffer.allocateDirect(this.bufferSize);
+		this.buffer.put(data).flip();
+	}
+
+	@Setup(org.openjdk.jmh.annotations.Level.Iteration)
+	public void open() throws IOException, SuperUploaderException {
+		// flat so tearDown finds the session folder; only the digest is measured,
+		// nothing is linked as the file is never completed
+		this.uploadReq = new UploadRequest(new Storage(new File[] { this.docRoot }, 0, Storage.Placement.HASH, this.dedup));
+		this.uploadReq.setSessionId("bench");
+		this.uploadReq.setFileName("upload.bin");
+		this.uploadReq.setChecksums(new Checksums(this.checksums));
+		this.uploadReq.open();
+		this.position = 0;
+	}
+
+	@TearDown(org.openjdk.jmh.annotations.Level.Iteration)
+	public void close() {
+		this.uploadReq.abort();
+	}
+
+	@TearDown
+	public void tearDown() {
+		new File(this.docRoot, "bench").delete();
+		this.docRoot.delete();
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		this.buffer.rewind();
+		this.uploadReq.write(this.buffer);
+		return this.uploadReq.getCount();
+	}
+
+	@Benchmark
+	public long writeAt() throws IOException {
+		this.buffer.rewind();
+		this.uploadReq.write(this.buffer, this.position);
+		this.position += this.bufferSize;
+		this.uploadReq.stored(this.bufferSize);
+		return this.uploadReq.getCount();
+	}
+
+}
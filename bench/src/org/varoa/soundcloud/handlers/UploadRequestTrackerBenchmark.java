@@ -0,0 +1,126 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.varoa.soundcloud.SuperUploaderException;
+
+/**
+ * Contention in the {@link UploadRequestTracker}: progress polls reading a
+ * session while uploads of the same and other sessions store data and come
+ * and go. Each group runs its readers and writers at once, so the scores
+ * show how much each side slows the other down.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadRequestTrackerBenchmark {
+
+	/**
+	 * Uploads going on in the polled session.
+	 */
+	@Param({ "1", "8" })
+	public int uploads;
+
+	/**
+	 * Other sessions with an upload each.
+	 */
+	@Param({ "0", "1000" })
+	public int sessions;
+
+	private final UploadRequestTracker tracker = UploadRequestTracker.getInstance();
+	private final AtomicInteger names = new AtomicInteger();
+	private File docRoot;
+	private Storage storage;
+	private UploadRequest[] polled;
+	private UploadRequest[] others;
+
+	@Setup
+	public void setUp() throws IOException, SuperUploaderException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		// tracking alone never creates files, the folder stays empty
+		this.docRoot = Files.createTempDirectory("superuploader-bench").toFile();
+		this.storage = new Storage(new File[] { this.docRoot }, 0, Storage.Placement.HASH, false);
+		this.polled = new UploadRequest[this.uploads];
+		for (int i = 0; i < this.uploads; i++) {
+			this.polled[i] = this.track("polled", "file" + i);
+		}
+		this.others = new UploadRequest[this.sessions];
+		for (int i = 0; i < this.sessions; i++) {
+			this.others[i] = this.track("session" + i, "file");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (UploadRequest req : this.polled) {
+			this.tracker.removeUploadRequest(req);
+		}
+		for (UploadRequest req : this.others) {
+			this.tracker.removeUploadRequest(req);
+		}
+		this.docRoot.delete();
+	}
+
+	private UploadRequest track(final String sessionId, final String fileName) throws SuperUploaderException {
+		UploadRequest req = new UploadRequest(this.storage);
+		req.setSessionId(sessionId);
+		req.setFileName(fileName);
+		req.setApproxSize(1L << 40);
+		this.tracker.addUploadRequest(req);
+		return req;
+	}
+
+	@Benchmark
+	@Group("poll")
+	@GroupThreads(4)
+	public Float progress() {
+		return this.tracker.getUploadProgressPercent("polled");
+	}
+
+	@Benchmark
+	@Group("poll")
+	@GroupThreads(2)
+	public void store() {
+		UploadRequest req = this.polled[(int) (Thread.currentThread().getId() % this.uploads)];
+		req.stored(1024);
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(4)
+	public Float pollDuringChurn() {
+		return this.tracker.getUploadProgressPercent("polled");
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(2)
+	public void addAndRemove() throws SuperUploaderException {
+		UploadRequest req = this.track("polled", "churn" + this.names.incrementAndGet());
+		this.tracker.removeUploadRequest(req);
+	}
+
+}
@@ -0,0 +1,327 @@
+package org.varoa.soundcloud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpInetConnection;
+import org.apache.log4j.Logger;
+
+/**
+ * Access log of connections, files served and uploads, kept off the threads
+ * doing the work. Events are copied as they are (references and numbers,
+ * no strings built) into a preallocated ring, and a single background
+ * thread turns them into lines and writes them out in large batches every
+ * flush interval, or sooner when the ring is half full.
+ *
+ * When the writer can't keep up the ring fills, and events are then either
+ * dropped and counted ({@link #getDropped()}) in lossy mode, or the threads
+ * logging wait for room.
+ *
+ * Until {@link #start} is called the log is disabled and events are ignored.
+ */
+public final class AccessLog {
+
+	private static final Logger log = Logger.getLogger(AccessLog.class);
+
+	private static final int OPEN = 0;
+	private static final int CLOSE = 1;
+	private static final int SERVE = 2;
+	private static final int UPLOAD = 3;
+	private static final String[] EVENTS = { "open", "close", "serve", "upload" };
+	/** Characters formatted before they are handed to the writer. */
+	private static final int BATCH_SIZE = 64 * 1024;
+
+	private static volatile AccessLog instance = new AccessLog(null, 0, true, 0);
+
+	private final Writer out;
+	private final int capacity;
+	private final int mask;
+	private final boolean lossy;
+	private final long flushNanos;
+
+	// the ring, one array per field; slot i holds sequence published[i] - 1
+	private final AtomicLongArray published;
+	private final long[] times;
+	private final int[] events;
+	private final Object[] clients;
+	private final Object[] subjects;
+	private final int[] statuses;
+	private final long[] offsets;
+	private final long[] counts;
+
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long consumed = 0;
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean running;
+	private final Thread writer;
+
+	/**
+	 * @param out where lines go, null to disable
+	 * @param size events buffered, rounded up to a power of two
+	 * @param lossy drop events rather than wait when full
+	 * @param flushInterval ms between writes
+	 */
+	private AccessLog(final Writer out, final int size, final boolean lossy, final long flushInterval) {
+		this.out = out;
+		this.capacity = (out == null) ? 0 : Integer.highestOneBit(Math.max(2, size - 1) << 1);
+		this.mask = this.capacity - 1;
+		this.lossy = lossy;
+		this.flushNanos = Math.max(1, flushInterval) * 1000000L;
+		this.published = new AtomicLongArray(this.capacity);
+		this.times = new long[this.capacity];
+		this.events = new int[this.capacity];
+		this.clients = new Object[this.capacity];
+		this.subjects = new Object[this.capacity];
+		this.statuses = new int[this.capacity];
+		this.offsets = new long[this.capacity];
+		this.counts = new long[this.capacity];
+		this.running = (out != null);
+		if (out == null) {
+			this.writer = null;
+			return;
+		}
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "Access log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public static AccessLog getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start logging to the given file, "-" for the standard output. Whatever
+	 * log was in use is closed.
+	 * @param file
+	 * @param size events buffered
+	 * @param lossy drop events rather than wait when full
+	 * @param flushInterval ms between writes
+	 * @throws IOException if the file can't be opened
+	 */
+	public static synchronized void start(final String file, final int size, final boolean lossy, final long flushInterval) throws IOException {
+		Writer out;
+		if ("-".equals(file)) {
+			out = new OutputStreamWriter(System.out, "UTF-8") {
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+		} else {
+			File parent = new File(file).getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Cannot create folder " + parent);
+			}
+			out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		}
+		AccessLog previous = instance;
+		instance = new AccessLog(out, size, lossy, flushInterval);
+		previous.close();
+		log.info("Access log to " + ("-".equals(file) ? "stdout" : file) + ", " + instance.capacity + " events buffered" + (lossy ? ", lossy" : ""));
+	}
+
+	/**
+	 * Write out what's buffered and stop, events logged from then on are
+	 * ignored.
+	 */
+	public void close() {
+		if (!this.running) {
+			return;
+		}
+		this.running = false;
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Events lost because the ring was full.
+	 * @return
+	 */
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+
+	/**
+	 * A client connected.
+	 * @param conn
+	 */
+	public void opened(final HttpConnection conn) {
+		this.append(OPEN, conn, null, 0, 0, 0);
+	}
+
+	/**
+	 * A client connection was closed.
+	 * @param conn
+	 * @param requests served on it
+	 */
+	public void closed(final HttpConnection conn, final long requests) {
+		this.append(CLOSE, conn, null, 0, 0, requests);
+	}
+
+	/**
+	 * A file was answered for.
+	 * @param conn
+	 * @param status sent
+	 * @param file
+	 * @param offset of the bytes sent
+	 * @param count of bytes sent
+	 */
+	public void served(final HttpConnection conn, final int status, final File file, final long offset, final long count) {
+		this.append(SERVE, conn, file, status, offset, count);
+	}
+
+	/**
+	 * An upload was stored.
+	 * @param sessionId
+	 * @param fileName
+	 * @param count of bytes stored
+	 */
+	public void uploaded(final String sessionId, final String fileName, final long count) {
+		this.append(UPLOAD, sessionId, fileName, 0, 0, count);
+	}
+
+	private void append(final int event, final Object client, final Object subject, final int status, final long offset, final long count) {
+		if (!this.running) {
+			return;
+		}
+		long seq;
+		if (this.lossy) {
+			do {
+				seq = this.claimed.get();
+				if (seq - this.consumed >= this.capacity) {
+					this.dropped.increment();
+					return;
+				}
+			} while (!this.claimed.compareAndSet(seq, seq + 1));
+		} else {
+			seq = this.claimed.getAndIncrement();
+			while (seq - this.consumed >= this.capacity) {
+				if (!this.running) {
+					this.dropped.increment();
+					return;
+				}
+				LockSupport.unpark(this.writer);
+				LockSupport.parkNanos(10000);
+			}
+		}
+		int slot = (int) seq & this.mask;
+		this.times[slot] = System.currentTimeMillis();
+		this.events[slot] = event;
+		this.clients[slot] = client;
+		this.subjects[slot] = subject;
+		this.statuses[slot] = status;
+		this.offsets[slot] = offset;
+		this.counts[slot] = count;
+		this.published.lazySet(slot, seq + 1);
+		// don't wait for the interval when the ring is filling up
+		if (seq - this.consumed == this.capacity >> 1) {
+			LockSupport.unpark(this.writer);
+		}
+	}
+
+	private void drainLoop() {
+		StringBuilder sb = new StringBuilder(BATCH_SIZE + 1024);
+		Formatter formatter = new Formatter();
+		while (true) {
+			boolean stopping = !this.running;
+			try {
+				long seq = this.consumed;
+				while (this.published.get((int) seq & this.mask) == seq + 1) {
+					int slot = (int) seq & this.mask;
+					formatter.format(sb, this.times[slot], this.events[slot], this.clients[slot], this.subjects[slot],
+							this.statuses[slot], this.offsets[slot], this.counts[slot]);
+					this.clients[slot] = null;
+					this.subjects[slot] = null;
+					this.consumed = ++seq;
+					if (sb.length() >= BATCH_SIZE) {
+						this.out.append(sb);
+						sb.setLength(0);
+					}
+				}
+				if (sb.length() > 0) {
+					this.out.append(sb);
+					sb.setLength(0);
+				}
+				this.out.flush();
+			} catch (IOException e) {
+				log.error("Cannot write access log", e);
+				sb.setLength(0);
+			}
+			if (stopping) {
+				break;
+			}
+			LockSupport.parkNanos(this.flushNanos);
+		}
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			log.error("Cannot close access log", e);
+		}
+	}
+
+	/**
+	 * Turns events into lines, only ever used by the writer thread.
+	 */
+	private static class Formatter {
+
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		private long second = -1;
+		private String date;
+
+		void format(final StringBuilder sb, final long time, final int event, final Object client, final Object subject,
+				final int status, final long offset, final long count) {
+			if (time / 1000 != this.second) {
+				this.second = time / 1000;
+				this.date = this.dateFormat.format(new Date(this.second * 1000));
+			}
+			long millis = time % 1000;
+			sb.append(this.date).append('.').append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+			sb.append(' ').append(EVENTS[event]);
+			if (client instanceof HttpInetConnection) {
+				HttpInetConnection conn = (HttpInetConnection) client;
+				InetAddress addr = conn.getRemoteAddress();
+				sb.append(" client=").append((addr == null) ? "-" : addr.getHostAddress()).append(':').append(conn.getRemotePort());
+			} else {
+				sb.append(" session=").append(client);
+			}
+			switch (event) {
+			case CLOSE:
+				sb.append(" requests=").append(count);
+				break;
+			case SERVE:
+				sb.append(" status=").append(status).append(" file=").append((subject == null) ? "-" : ((File) subject).getPath());
+				if (offset > 0) {
+					sb.append(" offset=").append(offset);
+				}
+				sb.append(" bytes=").append(count);
+				break;
+			case UPLOAD:
+				sb.append(" file=").append(subject).append(" bytes=").append(count);
+				break;
+			default:
+				break;
+			}
+			sb.append('\n');
+		}
+	}
+
+}
@@ -31,23 +31,35 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseFactory;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
 import org.apache.http.impl.nio.DefaultNHttpServerConnection;
-import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
-import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.NHttpConnectionFactory;
 import org.apache.http.nio.NHttpServerConnection;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandlerRegistry;
 import org.apache.http.nio.protocol.HttpAsyncService;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.ListeningIOReactor;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
-import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.ImmutableHttpProcessor;
 import org.apache.http.protocol.ResponseConnControl;
@@ -56,10 +68,24 @@ import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
+import org.varoa.soundcloud.handlers.BlobStore;
+import org.varoa.soundcloud.handlers.Checksums;
 import org.varoa.soundcloud.handlers.CommentHandler;
+import org.varoa.soundcloud.handlers.CommentStore;
 import org.varoa.soundcloud.handlers.DownloadHandler;
+import org.varoa.soundcloud.handlers.InstrumentedHandler;
+import org.varoa.soundcloud.handlers.MetricsHandler;
+import org.varoa.soundcloud.handlers.OpenFileCache;
 import org.varoa.soundcloud.handlers.ProgressHandler;
+import org.varoa.soundcloud.handlers.ResumableUploadHandler;
+import org.varoa.soundcloud.handlers.StaticAssetCache;
+import org.varoa.soundcloud.handlers.StaticHandler;
+import org.varoa.soundcloud.handlers.Storage;
 import org.varoa.soundcloud.handlers.UploadHandler;
+import org.varoa.soundcloud.handlers.UploadRequestTracker;
+import org.varoa.soundcloud.handlers.UploadStage;
+import org.varoa.soundcloud.handlers.WaveformHandler;
+import org.varoa.soundcloud.handlers.WaveformStage;
 import org.varoa.soundcloud.handlers.WelcomeHandler;
 
 /**
@@ -78,8 +104,8 @@ public class BasicHttpServer {
 	private static Logger log = Logger.getLogger(BasicHttpServer.class);
 
 	/**
-	 * Main entry point. Requests the route of the folder that contains
-	 * the main http file shown to the user.
+	 * Main entry point. Takes the configuration file as only argument,
+	 * see {@link ServerConfig}.
 	 * 
 	 * @param args
 	 * @throws Exception
@@ -87,70 +113,205 @@ public class BasicHttpServer {
 	public static void main(String[] args) throws Exception {
 		
 		PropertyConfigurator.configure("log4j.properties");
-		if (args.length < 2) {
-			log.error("Usage: and run public_folder storage [port]");
-			System.exit(1);
-		}		
+		ServerConfig config = ServerConfig.load(new File((args.length >= 1) ? args[0] : ServerConfig.DEFAULT_FILE));
 		
 		// Document root directory
-		File docRoot = new File(args[0]);
-		int port = 80;
-		if (args.length >= 3) {
-			port = Integer.parseInt(args[2]);
+		File docRoot = config.getFile("public.dir", "public");
+		int port = config.getInt("server.port", 80);
+		// Session folders, spread over the roots given and fanned out within them
+		Storage storage = null;
+		try {
+			storage = new Storage(config.getFiles("storage.dir", "storage"),
+					config.getInt("storage.fanOut", 2),
+					Storage.Placement.parse(config.getString("storage.placement", "hash")),
+					config.getBoolean("storage.dedup", true));
+		} catch (IOException e) {
+			log.error(e.getMessage());
+			System.exit(1);
+		}
+		String blobs = config.getString("storage.blobs", null);
+		if (blobs != null && config.getBoolean("storage.dedup", true)) {
+			storage.setBlobStore(new BlobStore(new File(blobs)));
+		}
+		storage.setSync(config.getBoolean("storage.fsync", false));
+		storage.startSweeping(config.getLong("storage.blobSweep", 60 * 60 * 1000));
+		// Stored files kept open for downloads, dropped when uploads replace them
+		OpenFileCache openFiles = null;
+		int maxOpenFiles = config.getInt("downloads.openFiles", 1024);
+		if (maxOpenFiles > 0) {
+			openFiles = new OpenFileCache(maxOpenFiles, config.getLong("downloads.revalidate", 1000));
+			storage.setOpenFiles(openFiles);
 		}
 		// HTTP parameters for the server
-		HttpParams params = new SyncBasicHttpParams();
-		params
-			.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
-			.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
-			.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
-			.setParameter(CoreProtocolPNames.ORIGIN_SERVER, "SuperUploader/1.1");
+		HttpParams params = ServerIOReactor.createHttpParams(config);
+		
+		// Create server-side I/O reactor
+		ListeningIOReactor ioReactor = new ServerIOReactor(config);
+		
+		// Slow, idle and surplus connections are closed
+		final ConnectionGuard guard = new ConnectionGuard(
+				config.getInt("connections.max", 10000),
+				config.getLong("connections.headerTimeout", 10000),
+				config.getLong("connections.minRate", 1024),
+				config.getLong("connections.rateWindow", 10000),
+				config.getLong("connections.maxRequestTime", 0));
+		
+		// Stopped by draining connections first, see Lifecycle
+		final Lifecycle lifecycle = new Lifecycle(ioReactor, config.getLong("server.drainTimeout", 30 * 1000));
 		
 		// Create HTTP protocol processing chain
 		HttpProcessor httpproc = new ImmutableHttpProcessor(
 				new HttpResponseInterceptor[] {
 						// Use standard server-side protocol interceptors
-						new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl() 
+						new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl(),
+						lifecycle.closeWhenDraining()
 					});
 		// Create request handler registry
 		HttpAsyncRequestHandlerRegistry reqistry = new HttpAsyncRequestHandlerRegistry();
 		
+		// Workers doing the blocking storage work off the I/O threads
+		WorkerPool workers = new WorkerPool(
+				config.getInt("workers.threads", 2 * Runtime.getRuntime().availableProcessors()),
+				config.getInt("workers.queue", 1024),
+				config.getBoolean("workers.virtual", false));
+		
+		// Uploads that stop storing data for this long are dropped
+		UploadRequestTracker.getInstance().startEviction(config.getLong("uploads.staleTimeout", 5 * 60 * 1000));
+		
+		// Checksums of every upload, checked against those the client sends
+		Checksums checksums = new Checksums(config.getString("uploads.checksums", "crc32c,sha-256"));
+		
+		// Work done on the content of every upload as it's stored
+		List<UploadStage.Factory> stages = new ArrayList<UploadStage.Factory>();
+		int peaks = config.getInt("waveform.peaks", 1800);
+		if (peaks > 0) {
+			stages.add(WaveformStage.factory(peaks));
+		}
+		
+		// Connections, files served and uploads, logged in batches off the I/O threads
+		String accessLog = config.getString("accesslog.file", "-");
+		if (accessLog.length() > 0) {
+			AccessLog.start(accessLog,
+					config.getInt("accesslog.bufferSize", 64 * 1024),
+					config.getBoolean("accesslog.lossy", true),
+					config.getLong("accesslog.flushInterval", 200));
+		}
+		
+		// Uploads take turns, and each session gets its share of the bandwidth
+		Throttle throttle = new Throttle(
+				config.getInt("throttle.maxUploads", 128),
+				config.getInt("throttle.queue", 512),
+				config.getLong("throttle.uploadRate", 0),
+				config.getLong("throttle.downloadRate", 0),
+				config.getLong("throttle.burst", 1024 * 1024));
+		
+		// Comments of all sessions, appended to a log in batches
+		CommentStore comments = new CommentStore(config.getFile("comments.dir", new File(storage.getPrimaryRoot(), ".comments").getPath()),
+				config.getLong("comments.segmentSize", 64 * 1024 * 1024),
+				config.getInt("comments.queue", 4096),
+				config.getInt("comments.batchSize", 512),
+				config.getBoolean("comments.sync", true));
+		
+		// Public files kept in memory, ready to send
+		StaticAssetCache assets = new StaticAssetCache(docRoot,
+				config.getLong("static.cacheSize", 32 * 1024 * 1024),
+				config.getLong("static.maxFileSize", 1024 * 1024), workers);
+		int maxAge = config.getInt("static.maxAge", 0);
+		
+		// Figures exposed on /metrics
+		final Metrics metrics = new Metrics();
+		final AtomicInteger connections = new AtomicInteger();
+		registerGauges(metrics, connections, workers, assets, throttle, openFiles, guard);
+		
 		log.info("Registering handlers..");
-		// Register handlers for each action
-		File storage = new File(args[1]);
-		reqistry.register("/superuploader", new WelcomeHandler(new File(docRoot, "/form.html")));
-		reqistry.register("/upload", new UploadHandler(storage));
-		reqistry.register("/download/*", new DownloadHandler(storage));
-		reqistry.register("/comment", new CommentHandler(storage));
-		reqistry.register("/progress", new ProgressHandler());
+		// Register handlers for each action, timed under the given name
+		reqistry.register("/superuploader", instrument("welcome", new WelcomeHandler(assets, "form.html", maxAge), metrics));
+		reqistry.register("/public/*", instrument("static", new StaticHandler(assets, "/public/", maxAge), metrics));
+		long maxSize = config.getLong("uploads.maxSize", 2048L * 1024 * 1024);
+		reqistry.register("/upload", instrument("upload", new UploadHandler(storage, workers, throttle, checksums, stages,
+				config.getBoolean("uploads.parallelClose", false), maxSize), metrics));
+		HttpAsyncRequestHandler<HttpRequest> resumableHandler = instrument("resumable",
+				new ResumableUploadHandler(storage, workers, config.getInt("resumable.chunkSize", 1024 * 1024), throttle, checksums, stages,
+						config.getLong("resumable.maxSize", maxSize), config.getInt("resumable.maxPerSession", 16)), metrics);
+		reqistry.register("/resumable", resumableHandler);
+		reqistry.register("/resumable/*", resumableHandler);
+		reqistry.register("/download/*", instrument("download", new DownloadHandler(storage, throttle, checksums, openFiles), metrics));
+		reqistry.register("/waveform/*", instrument("waveform", new WaveformHandler(storage), metrics));
+		reqistry.register("/comment", instrument("comment", new CommentHandler(comments, workers), metrics));
+		reqistry.register("/progress", instrument("progress", new ProgressHandler(
+				config.getInt("progress.delta", 1),
+				config.getInt("progress.maxWait", 20000)), metrics));
+		reqistry.register("/metrics", new MetricsHandler(metrics));
 		
 		// Create server-side HTTP protocol handler
 		HttpAsyncService protocolHandler = new HttpAsyncService(httpproc, new DefaultConnectionReuseStrategy(), reqistry, params) {
 
+			private final HttpResponseFactory responseFactory = new DefaultHttpResponseFactory();
+
 			@Override
 			public void connected(final NHttpServerConnection conn) {
-				log.info(conn + ": connection open");
+				connections.incrementAndGet();
+				lifecycle.connected(conn);
+				guard.connected(conn);
+				AccessLog.getInstance().opened(conn);
 				super.connected(conn);
 			}
 
 			@Override
 			public void closed(final NHttpServerConnection conn) {
-				log.info(conn + ": connection closed");
+				connections.decrementAndGet();
+				lifecycle.closed(conn);
+				guard.closed(conn);
+				AccessLog.getInstance().closed(conn, conn.getMetrics().getRequestCount());
 				super.closed(conn);
 			}
 
+			/**
+			 * Bodies found too large while they are read are refused like
+			 * the rest, the consumer hands the rejection over wrapped.
+			 */
+			@Override
+			public void inputReady(final NHttpServerConnection conn, final ContentDecoder decoder) throws IOException, HttpException {
+				try {
+					super.inputReady(conn, decoder);
+				} catch (IOException e) {
+					RequestRejectedException rejection = RequestRejectedException.unwrap(e);
+					if (rejection == null) {
+						throw e;
+					}
+					throw rejection;
+				}
+			}
+
+			/**
+			 * Requests refused before their body is read get the status they
+			 * asked for, and the connection is closed since the rest of the
+			 * body is never read.
+			 */
+			@Override
+			protected HttpAsyncResponseProducer handleException(final Exception ex, final HttpContext context) {
+				if (ex instanceof RequestRejectedException) {
+					// those refused while the body is read never reach the instrumented handler
+					InstrumentedHandler.recordRejected(context, ((RequestRejectedException) ex).getStatusCode());
+					HttpResponse response = this.responseFactory.newHttpResponse(HttpVersion.HTTP_1_1, ((RequestRejectedException) ex).getStatusCode(), context);
+					response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+					response.setEntity(new NStringEntity(ex.getMessage(), ContentType.DEFAULT_TEXT));
+					return new BasicAsyncResponseProducer(response);
+				}
+				return super.handleException(ex, context);
+			}
+
 		};
 		
 		// Create HTTP connection factory
 		NHttpConnectionFactory<DefaultNHttpServerConnection> connFactory;
-		connFactory = new DefaultNHttpServerConnectionFactory(params);
+		connFactory = guard.connectionFactory(params);
 		
 		// Create server-side I/O event dispatch
 		IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(protocolHandler, connFactory);
 		
-		// Create server-side I/O reactor
-		log.info("Listening..");
-		ListeningIOReactor ioReactor = new DefaultListeningIOReactor();
+		log.info("Listening on port " + port + ", reactor: " + ioReactor);
+		lifecycle.installShutdownHook();
 		try {
 			ioReactor.listen(new InetSocketAddress(port));
 			ioReactor.execute(ioEventDispatch);
@@ -159,8 +320,91 @@ public class BasicHttpServer {
 		} catch (IOException e) {
 			log.error("I/O error: " + e.getMessage());
 		}
+		// storage work of the connections just closed, then whatever was left unfinished
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(config.getLong("server.drainTimeout", 30 * 1000))) {
+				log.warn("Storage work still going on");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String quarantine = config.getString("server.quarantine", null);
+		int dropped = UploadRequestTracker.getInstance().dropAll((quarantine == null) ? null : new File(quarantine));
+		if (dropped > 0) {
+			log.info("Dropped " + dropped + " unfinished uploads");
+		}
+		comments.close();
+		AccessLog.getInstance().close();
 		log.info("Shutdown");
+		lifecycle.stopped();
 		
 	}
+
+	/**
+	 * Time the requests of the handler under the given name.
+	 */
+	private static <T> HttpAsyncRequestHandler<T> instrument(final String name, final HttpAsyncRequestHandler<T> handler, final Metrics metrics) {
+		return new InstrumentedHandler<T>(name, handler, metrics);
+	}
+
+	/**
+	 * Export the figures telling how close to saturation the server is.
+	 */
+	private static void registerGauges(final Metrics metrics, final AtomicInteger connections, final WorkerPool workers, final StaticAssetCache assets,
+			final Throttle throttle, final OpenFileCache openFiles, final ConnectionGuard guard) {
+		metrics.registerGauge("open_connections", "Client connections open.", new Metrics.Gauge() {
+			public double getValue() {
+				return connections.get();
+			}
+		});
+		metrics.registerGauge("active_uploads", "Uploads being received.", new Metrics.Gauge() {
+			public double getValue() {
+				return UploadRequestTracker.getInstance().getActiveUploads();
+			}
+		});
+		metrics.registerGauge("worker_queue_depth", "Storage tasks waiting for or running on a worker.", new Metrics.Gauge() {
+			public double getValue() {
+				return workers.getQueueDepth();
+			}
+		});
+		metrics.registerGauge("accesslog_dropped", "Access log events lost to a full buffer.", new Metrics.Gauge() {
+			public double getValue() {
+				return AccessLog.getInstance().getDropped();
+			}
+		});
+		metrics.registerGauge("static_cache_bytes", "Bytes of public files held in memory.", new Metrics.Gauge() {
+			public double getValue() {
+				return assets.getSize();
+			}
+		});
+		metrics.registerGauge("uploads_admitted", "Uploads allowed to read their body.", new Metrics.Gauge() {
+			public double getValue() {
+				return throttle.getActiveUploads();
+			}
+		});
+		metrics.registerGauge("uploads_queued", "Uploads waiting for their turn.", new Metrics.Gauge() {
+			public double getValue() {
+				return throttle.getQueuedUploads();
+			}
+		});
+		metrics.registerGauge("worker_saturated", "1 when new storage work is being refused.", new Metrics.Gauge() {
+			public double getValue() {
+				return workers.isSaturated() ? 1 : 0;
+			}
+		});
+		metrics.registerCounter("connections_closed_by_guard_total", "Connections closed for being slow, idle or over the limit.", new Metrics.Gauge() {
+			public double getValue() {
+				return guard.getClosed();
+			}
+		});
+		if (openFiles != null) {
+			metrics.registerGauge("download_open_files", "Stored files kept open for downloads.", new Metrics.Gauge() {
+				public double getValue() {
+					return openFiles.size();
+				}
+			});
+		}
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,313 @@
+package org.varoa.soundcloud;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpRequestFactory;
+import org.apache.http.impl.nio.DefaultNHttpServerConnection;
+import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
+import org.apache.http.nio.NHttpConnectionFactory;
+import org.apache.http.nio.NHttpServerConnection;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.util.ByteBufferAllocator;
+import org.apache.http.params.HttpParams;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps slow and idle clients from holding connections, and the buffers
+ * and uploads behind them, for longer than they deserve. The socket timeout
+ * only catches clients that send nothing at all; one trickling a byte now
+ * and then never trips it. Every second the connections are checked for:
+ *
+ * <ul>
+ * <li>a request head not received within the header timeout since the
+ * connection opened or answered its last request, which also covers idle
+ * keep-alive connections,</li>
+ * <li>a body received, or a response taken, slower than the minimum rate
+ * over the rate window. Only the time the server wants to read or write
+ * counts, so uploads waiting for their turn or held back by the
+ * {@link Throttle} are not penalized,</li>
+ * <li>a request taking longer than the maximum request time.</li>
+ * </ul>
+ *
+ * Offenders are shut down. Over the connection limit the connection idle
+ * for the longest is closed to make room, or if none is idle the new one.
+ *
+ * The guard needs to know when the server suspends a connection, so
+ * connections must come from {@link #connectionFactory(HttpParams)}, and
+ * it needs the connected and closed events of the protocol handler.
+ */
+public class ConnectionGuard {
+
+	private static final Logger log = Logger.getLogger(ConnectionGuard.class);
+	private static final long CHECK_INTERVAL = 1000;
+
+	private final int maxConnections;
+	private final long headerTimeout;
+	private final long minRate;
+	private final long rateWindow;
+	private final long maxRequestTime;
+	private final ConcurrentMap<NHttpServerConnection, Watch> watches = new ConcurrentHashMap<NHttpServerConnection, Watch>();
+	private final AtomicLong closed = new AtomicLong();
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * What's known of a connection, guarded by itself.
+	 */
+	private static class Watch {
+		/** when the connection went idle, 0 while busy */
+		long idleSince;
+		long requestStart = 0;
+		long requests = 0;
+		long active = 0;
+		long bytes = 0;
+		long lastBytes = 0;
+
+		Watch(final long now) {
+			this.idleSince = now;
+		}
+	}
+
+	/**
+	 * A connection telling whether the server has suspended its input or
+	 * output, which the session doesn't expose.
+	 */
+	private static class GuardedConnection extends DefaultNHttpServerConnection {
+
+		volatile boolean inputSuspended = false;
+		volatile boolean outputSuspended = false;
+
+		GuardedConnection(final IOSession session, final HttpRequestFactory requestFactory, final ByteBufferAllocator allocator, final HttpParams params) {
+			super(session, requestFactory, allocator, params);
+		}
+
+		@Override
+		public void suspendInput() {
+			this.inputSuspended = true;
+			super.suspendInput();
+		}
+
+		@Override
+		public void requestInput() {
+			this.inputSuspended = false;
+			super.requestInput();
+		}
+
+		@Override
+		public void suspendOutput() {
+			this.outputSuspended = true;
+			super.suspendOutput();
+		}
+
+		@Override
+		public void requestOutput() {
+			this.outputSuspended = false;
+			super.requestOutput();
+		}
+	}
+
+	/**
+	 * @param maxConnections open at once, 0 for no limit
+	 * @param headerTimeout ms to receive a request head, 0 for no limit
+	 * @param minRate bytes per second a body must at least move at, 0 for no limit
+	 * @param rateWindow ms over which the rate is measured
+	 * @param maxRequestTime ms from a request head to the end of its response, 0 for no limit
+	 */
+	public ConnectionGuard(final int maxConnections, final long headerTimeout, final long minRate, final long rateWindow, final long maxRequestTime) {
+		this.maxConnections = maxConnections;
+		this.headerTimeout = headerTimeout;
+		this.minRate = minRate;
+		this.rateWindow = Math.max(CHECK_INTERVAL, rateWindow);
+		this.maxRequestTime = maxRequestTime;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Connection guard");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				ConnectionGuard.this.check(System.currentTimeMillis());
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		log.info("Connection guard: " + this);
+	}
+
+	/**
+	 * Creates the connections the guard can watch.
+	 * @param params
+	 * @return
+	 */
+	public NHttpConnectionFactory<DefaultNHttpServerConnection> connectionFactory(final HttpParams params) {
+		return new DefaultNHttpServerConnectionFactory(params) {
+			@Override
+			protected DefaultNHttpServerConnection createConnection(final IOSession session, final HttpRequestFactory requestFactory,
+					final ByteBufferAllocator allocator, final HttpParams params) {
+				return new GuardedConnection(session, requestFactory, allocator, params);
+			}
+		};
+	}
+
+	/**
+	 * Watch a new connection, making room for it if over the limit.
+	 * @param conn
+	 */
+	public void connected(final NHttpServerConnection conn) {
+		this.watches.put(conn, new Watch(System.currentTimeMillis()));
+		if (this.maxConnections > 0 && this.watches.size() > this.maxConnections) {
+			NHttpServerConnection victim = this.oldestIdle();
+			if (victim == null) {
+				victim = conn;
+			}
+			// counted in closed, a flood of them mustn't flood the log too
+			if (log.isDebugEnabled()) {
+				log.debug("Too many connections, closing " + ((victim == conn) ? "new " : "idle ") + victim);
+			}
+			this.watches.remove(victim);
+			this.closed.incrementAndGet();
+			shutdown(victim);
+		}
+	}
+
+	public void closed(final NHttpServerConnection conn) {
+		this.watches.remove(conn);
+	}
+
+	/**
+	 * Connections closed for being slow, idle or too many.
+	 * @return
+	 */
+	public long getClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * The idle connection idle for the longest. Reads idleness as the last
+	 * check saw it.
+	 * @return null if none is idle
+	 */
+	private NHttpServerConnection oldestIdle() {
+		NHttpServerConnection oldest = null;
+		long since = Long.MAX_VALUE;
+		for (Map.Entry<NHttpServerConnection, Watch> entry : this.watches.entrySet()) {
+			Watch watch = entry.getValue();
+			synchronized (watch) {
+				if (watch.idleSince != 0 && watch.idleSince < since && isIdle(entry.getKey())) {
+					since = watch.idleSince;
+					oldest = entry.getKey();
+				}
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Go through the connections, shutting down those over their limits.
+	 * @param now
+	 */
+	void check(final long now) {
+		for (Map.Entry<NHttpServerConnection, Watch> entry : this.watches.entrySet()) {
+			NHttpServerConnection conn = entry.getKey();
+			String reason;
+			synchronized (entry.getValue()) {
+				reason = this.check(conn, entry.getValue(), now);
+			}
+			if (reason != null) {
+				log.warn("Closing " + conn + ": " + reason);
+				this.watches.remove(conn);
+				this.closed.incrementAndGet();
+				shutdown(conn);
+			}
+		}
+	}
+
+	/**
+	 * @return why the connection has to go, null if it can stay
+	 */
+	private String check(final NHttpServerConnection conn, final Watch watch, final long now) {
+		HttpConnectionMetrics metrics = conn.getMetrics();
+		long requests = metrics.getRequestCount();
+		if (requests != watch.requests) {
+			// a request came in since the last check
+			watch.requests = requests;
+			watch.requestStart = now;
+			watch.idleSince = 0;
+			this.resetRate(watch, conn);
+		}
+		if (isIdle(conn)) {
+			if (watch.idleSince == 0) {
+				watch.idleSince = now;
+			}
+			if (this.headerTimeout > 0 && now - watch.idleSince > this.headerTimeout) {
+				return "no request within " + this.headerTimeout + " ms";
+			}
+			return null;
+		}
+		if (this.maxRequestTime > 0 && watch.requestStart != 0 && now - watch.requestStart > this.maxRequestTime) {
+			return "request over " + this.maxRequestTime + " ms";
+		}
+		if (this.minRate > 0 && conn instanceof GuardedConnection) {
+			GuardedConnection guarded = (GuardedConnection) conn;
+			// the body being received, or the response being sent
+			boolean receiving = conn.getHttpRequest() != null && !guarded.inputSuspended;
+			boolean sending = conn.getHttpResponse() != null && !guarded.outputSuspended;
+			long bytes = metrics.getReceivedBytesCount() + metrics.getSentBytesCount();
+			if (receiving || sending) {
+				watch.active += CHECK_INTERVAL;
+				watch.bytes += bytes - watch.lastBytes;
+			}
+			watch.lastBytes = bytes;
+			if (watch.active >= this.rateWindow) {
+				long rate = watch.bytes * 1000 / watch.active;
+				watch.active = 0;
+				watch.bytes = 0;
+				if (rate < this.minRate) {
+					return rate + " bytes/s, under " + this.minRate;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void resetRate(final Watch watch, final NHttpServerConnection conn) {
+		HttpConnectionMetrics metrics = conn.getMetrics();
+		watch.active = 0;
+		watch.bytes = 0;
+		watch.lastBytes = metrics.getReceivedBytesCount() + metrics.getSentBytesCount();
+	}
+
+	/**
+	 * Whether the connection is between requests: every request received
+	 * has been answered and no response is being sent. A request head only
+	 * partly received doesn't count yet.
+	 * @param conn
+	 * @return
+	 */
+	static boolean isIdle(final NHttpServerConnection conn) {
+		HttpConnectionMetrics metrics = conn.getMetrics();
+		return metrics.getRequestCount() == metrics.getResponseCount() && conn.getHttpResponse() == null;
+	}
+
+	private static void shutdown(final NHttpServerConnection conn) {
+		try {
+			conn.shutdown();
+		} catch (IOException e) {
+			log.debug("Error shutting down " + conn, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[maxConnections=" + this.maxConnections + ", headerTimeout=" + this.headerTimeout + ", minRate=" + this.minRate
+				+ ", rateWindow=" + this.rateWindow + ", maxRequestTime=" + this.maxRequestTime + "]";
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.varoa.soundcloud;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in microseconds, in the spirit of
+ * HdrHistogram: every power of two is split in {@value #SUB_BUCKETS} linear
+ * buckets, so any value is known within about 6% whatever its magnitude,
+ * from 1us to over a day, in a fixed few KB. Recording is an index
+ * computation and an atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param micros
+	 */
+	public void record(final long micros) {
+		long value = Math.max(0, micros);
+		this.counts.incrementAndGet(Math.min(index(value), this.counts.length() - 1));
+		this.total.increment();
+		this.sum.add(value);
+	}
+
+	public long getCount() {
+		return this.total.sum();
+	}
+
+	/**
+	 * Sum of everything recorded, in microseconds.
+	 * @return
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * Values recorded up to the given one, as far as the buckets tell.
+	 * @param micros
+	 * @return
+	 */
+	public long getCountAtOrBelow(final long micros) {
+		long count = 0;
+		for (int i = 0; i < this.counts.length() && highestValue(i) <= micros; i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * The value below which the given fraction of the recorded ones are.
+	 * @param quantile between 0 and 1
+	 * @return microseconds, 0 if nothing was recorded
+	 */
+	public long getValueAtQuantile(final double quantile) {
+		long[] snapshot = new long[this.counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+		return highestValue(snapshot.length - 1);
+	}
+
+	static int index(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The largest value that falls in the bucket.
+	 * @param index
+	 * @return
+	 */
+	static long highestValue(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.varoa.soundcloud;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.nio.NHttpServerConnection;
+import org.apache.http.nio.reactor.ListenerEndpoint;
+import org.apache.http.nio.reactor.ListeningIOReactor;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.varoa.soundcloud.handlers.UploadRequestTracker;
+
+/**
+ * Stops the server without throwing away the transfers in progress, for
+ * rolling deploys. On SIGTERM (or anything else running the shutdown
+ * hooks) it:
+ *
+ * <ol>
+ * <li>closes the listeners, so the port is free for the next process,</li>
+ * <li>answers waiting progress polls and marks every response from then on
+ * with Connection: close,</li>
+ * <li>closes connections as soon as they are idle, until none are left or
+ * the drain timeout is over,</li>
+ * <li>shuts the I/O reactor down, which closes what's left.</li>
+ * </ol>
+ *
+ * The hook then waits for {@link #stopped()}, so main can finish storage
+ * work and drop partial files before the JVM goes.
+ */
+public class Lifecycle {
+
+	private static Logger log = Logger.getLogger(Lifecycle.class);
+	private static final long CHECK_INTERVAL = 100;
+	/** ms the hook waits for main to clean up once the reactor is down */
+	private static final long CLEANUP_TIMEOUT = 30 * 1000;
+
+	private final ListeningIOReactor ioReactor;
+	private final long drainTimeout;
+	private final Set<NHttpServerConnection> connections = ConcurrentHashMap.newKeySet();
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean draining = false;
+
+	/**
+	 * @param ioReactor
+	 * @param drainTimeout ms connections are given to finish what they're doing
+	 */
+	public Lifecycle(final ListeningIOReactor ioReactor, final long drainTimeout) {
+		this.ioReactor = ioReactor;
+		this.drainTimeout = drainTimeout;
+	}
+
+	/**
+	 * Drain when the JVM is asked to stop.
+	 */
+	public void installShutdownHook() {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				Lifecycle.this.drain();
+				try {
+					if (!Lifecycle.this.done.await(CLEANUP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+						log.warn("Cleanup still going on, stopping anyway");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "Shutdown"));
+	}
+
+	/**
+	 * Adds Connection: close to responses once draining, so clients open
+	 * their next connection to another server.
+	 * @return
+	 */
+	public HttpResponseInterceptor closeWhenDraining() {
+		return new HttpResponseInterceptor() {
+			public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+				if (Lifecycle.this.draining) {
+					response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+				}
+			}
+		};
+	}
+
+	public void connected(final NHttpServerConnection conn) {
+		this.connections.add(conn);
+	}
+
+	public void closed(final NHttpServerConnection conn) {
+		this.connections.remove(conn);
+	}
+
+	public boolean isDraining() {
+		return this.draining;
+	}
+
+	/**
+	 * Stop taking connections and wait for those open to be done, up to the
+	 * drain timeout, then shut the reactor down. Returns once it is.
+	 */
+	public void drain() {
+		if (this.draining) {
+			return;
+		}
+		this.draining = true;
+		log.info("Draining " + this.connections.size() + " connections");
+		for (ListenerEndpoint endpoint : this.ioReactor.getEndpoints()) {
+			endpoint.close();
+		}
+		UploadRequestTracker.getInstance().answerWatchers();
+		long deadline = System.currentTimeMillis() + this.drainTimeout;
+		try {
+			while (System.currentTimeMillis() < deadline) {
+				for (NHttpServerConnection conn : this.connections) {
+					if (ConnectionGuard.isIdle(conn)) {
+						this.close(conn);
+					}
+				}
+				if (this.connections.isEmpty()) {
+					break;
+				}
+				Thread.sleep(CHECK_INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!this.connections.isEmpty()) {
+			log.warn("Drain timeout, closing " + this.connections.size() + " connections still busy");
+		}
+		try {
+			this.ioReactor.shutdown();
+		} catch (IOException e) {
+			log.error("Error shutting down the I/O reactor", e);
+		}
+	}
+
+	/**
+	 * Called by main once everything is closed and cleaned up.
+	 */
+	public void stopped() {
+		this.done.countDown();
+	}
+
+	private void close(final NHttpServerConnection conn) {
+		try {
+			conn.close();
+		} catch (IOException e) {
+			log.debug("Error closing idle connection", e);
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package org.varoa.soundcloud;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime figures of the server: per handler request counts by status,
+ * latency histograms and bytes in and out, plus gauges and counters
+ * registered by whoever knows the value (open connections, active uploads,
+ * worker queue depth...). Recording only touches striped counters, so it can be done
+ * on every request without slowing the I/O threads down.
+ *
+ * {@link #write(StringBuilder)} renders everything in the Prometheus text
+ * exposition format.
+ */
+public class Metrics {
+
+	private static final String PREFIX = "superuploader_";
+	/** Bucket bounds exported for the latency histograms, in seconds. */
+	private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	/**
+	 * A value read when the metrics are rendered.
+	 */
+	public interface Gauge {
+		double getValue();
+	}
+
+	private final ConcurrentMap<String, HandlerMetrics> handlers = new ConcurrentSkipListMap<String, HandlerMetrics>();
+	private final ConcurrentMap<String, RegisteredGauge> gauges = new ConcurrentSkipListMap<String, RegisteredGauge>();
+
+	private static class RegisteredGauge {
+
+		private final String type;
+		private final String help;
+		private final Gauge gauge;
+
+		RegisteredGauge(final String type, final String help, final Gauge gauge) {
+			this.type = type;
+			this.help = help;
+			this.gauge = gauge;
+		}
+	}
+
+	/**
+	 * Figures of one handler.
+	 */
+	public static class HandlerMetrics {
+
+		private final ConcurrentMap<String, LongAdder> responses = new ConcurrentHashMap<String, LongAdder>();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder received = new LongAdder();
+		private final LongAdder sent = new LongAdder();
+
+		/**
+		 * A request was answered.
+		 * @param status code sent, null if the exchange was aborted
+		 * @param nanos since the request arrived
+		 * @param received bytes
+		 * @param sent bytes
+		 */
+		public void record(final Integer status, final long nanos, final long received, final long sent) {
+			String code = (status == null) ? "aborted" : status.toString();
+			LongAdder count = this.responses.get(code);
+			if (count == null) {
+				LongAdder created = new LongAdder();
+				count = this.responses.putIfAbsent(code, created);
+				if (count == null) {
+					count = created;
+				}
+			}
+			count.increment();
+			this.latency.record(nanos / 1000);
+			this.received.add(Math.max(0, received));
+			this.sent.add(Math.max(0, sent));
+		}
+	}
+
+	/**
+	 * The figures of the named handler, created on first use.
+	 * @param handler
+	 * @return
+	 */
+	public HandlerMetrics getHandler(final String handler) {
+		HandlerMetrics metrics = this.handlers.get(handler);
+		if (metrics == null) {
+			HandlerMetrics created = new HandlerMetrics();
+			metrics = this.handlers.putIfAbsent(handler, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Export a value under {@value #PREFIX} + name.
+	 * @param name
+	 * @param help
+	 * @param gauge
+	 */
+	public void registerGauge(final String name, final String help, final Gauge gauge) {
+		this.gauges.put(name, new RegisteredGauge("gauge", help, gauge));
+	}
+
+	/**
+	 * Export a value that only ever goes up under {@value #PREFIX} + name,
+	 * which should end in _total.
+	 * @param name
+	 * @param help
+	 * @param counter
+	 */
+	public void registerCounter(final String name, final String help, final Gauge counter) {
+		this.gauges.put(name, new RegisteredGauge("counter", help, counter));
+	}
+
+	/**
+	 * Render all the metrics in Prometheus text format.
+	 * @param sb
+	 */
+	public void write(final StringBuilder sb) {
+		header(sb, "requests_total", "counter", "Requests answered, by handler and status code.");
+		for (Map.Entry<String, HandlerMetrics> entry : this.handlers.entrySet()) {
+			for (Map.Entry<String, LongAdder> code : new ConcurrentSkipListMap<String, LongAdder>(entry.getValue().responses).entrySet()) {
+				sb.append(PREFIX).append("requests_total{handler=\"").append(entry.getKey())
+					.append("\",code=\"").append(code.getKey()).append("\"} ").append(code.getValue().sum()).append('\n');
+			}
+		}
+		header(sb, "request_duration_seconds", "histogram", "Time from the request head arriving to the response being sent.");
+		for (Map.Entry<String, HandlerMetrics> entry : this.handlers.entrySet()) {
+			LatencyHistogram latency = entry.getValue().latency;
+			String labels = "handler=\"" + entry.getKey() + "\"";
+			long count = latency.getCount();
+			for (double bucket : BUCKETS) {
+				sb.append(PREFIX).append("request_duration_seconds_bucket{").append(labels).append(",le=\"").append(format(bucket)).append("\"} ")
+					.append(latency.getCountAtOrBelow((long) (bucket * 1e6))).append('\n');
+			}
+			sb.append(PREFIX).append("request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+			sb.append(PREFIX).append("request_duration_seconds_sum{").append(labels).append("} ").append(format(latency.getSum() / 1e6)).append('\n');
+			sb.append(PREFIX).append("request_duration_seconds_count{").append(labels).append("} ").append(count).append('\n');
+		}
+		header(sb, "request_duration_quantile_seconds", "gauge", "Latency quantiles since startup, within 6%.");
+		for (Map.Entry<String, HandlerMetrics> entry : this.handlers.entrySet()) {
+			for (double quantile : QUANTILES) {
+				sb.append(PREFIX).append("request_duration_quantile_seconds{handler=\"").append(entry.getKey())
+					.append("\",quantile=\"").append(format(quantile)).append("\"} ")
+					.append(format(entry.getValue().latency.getValueAtQuantile(quantile) / 1e6)).append('\n');
+			}
+		}
+		header(sb, "received_bytes_total", "counter", "Request body bytes received, the heads being read before timing starts.");
+		for (Map.Entry<String, HandlerMetrics> entry : this.handlers.entrySet()) {
+			sb.append(PREFIX).append("received_bytes_total{handler=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().received.sum()).append('\n');
+		}
+		header(sb, "sent_bytes_total", "counter", "Bytes sent, response heads included.");
+		for (Map.Entry<String, HandlerMetrics> entry : this.handlers.entrySet()) {
+			sb.append(PREFIX).append("sent_bytes_total{handler=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().sent.sum()).append('\n');
+		}
+		for (Map.Entry<String, RegisteredGauge> entry : this.gauges.entrySet()) {
+			header(sb, entry.getKey(), entry.getValue().type, entry.getValue().help);
+			sb.append(PREFIX).append(entry.getKey()).append(' ').append(format(entry.getValue().gauge.getValue())).append('\n');
+		}
+	}
+
+	private static void header(final StringBuilder sb, final String name, final String type, final String help) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String format(final double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return String.format(Locale.US, "%.6g", value).replaceAll("\\.?0+$", "").replaceAll("\\.?0+e", "e");
+	}
+
+}
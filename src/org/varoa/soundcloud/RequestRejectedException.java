@@ -0,0 +1,49 @@
+package org.varoa.soundcloud;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+
+/**
+ * Thrown while a request is being received to refuse it straight away with
+ * the given status, without reading the rest of it. Turned into the actual
+ * response by the protocol handler in {@link BasicHttpServer}.
+ *
+ * Request consumers can only throw I/O errors while the body is streamed,
+ * so they throw {@link #asIOException()} and the protocol handler unwraps
+ * it again.
+ */
+public class RequestRejectedException extends HttpException {
+
+	private static final long serialVersionUID = -2712958472113964581L;
+
+	private final int statusCode;
+
+	public RequestRejectedException (int statusCode, String message) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * This rejection carried by an I/O error, to be thrown from a request
+	 * consumer.
+	 * @return
+	 */
+	public IOException asIOException() {
+		return new IOException(this.getMessage(), this);
+	}
+
+	/**
+	 * The rejection carried by an I/O error from {@link #asIOException()}.
+	 * @param e
+	 * @return null if it carries none
+	 */
+	public static RequestRejectedException unwrap(final IOException e) {
+		return (e.getCause() instanceof RequestRejectedException) ? (RequestRejectedException) e.getCause() : null;
+	}
+
+}
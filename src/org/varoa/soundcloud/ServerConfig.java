@@ -0,0 +1,102 @@
+package org.varoa.soundcloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Server settings, read from a properties file. Any key can be overridden
+ * with a system property of the same name, e.g. -Dserver.port=8080.
+ * Missing keys fall back to the default given by the caller.
+ */
+public class ServerConfig {
+
+	private static final Logger log = Logger.getLogger(ServerConfig.class);
+	public static final String DEFAULT_FILE = "superuploader.properties";
+
+	private final Properties props;
+
+	public ServerConfig(final Properties props) {
+		this.props = props;
+	}
+
+	/**
+	 * Load the given file, if it doesn't exist only defaults and system
+	 * properties are used.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ServerConfig load(final File file) throws IOException {
+		Properties props = new Properties();
+		if (file.exists()) {
+			InputStream is = new FileInputStream(file);
+			try {
+				props.load(is);
+			} finally {
+				is.close();
+			}
+			log.info("Configuration loaded from " + file);
+		} else {
+			log.warn("Configuration file " + file + " not found, using defaults");
+		}
+		return new ServerConfig(props);
+	}
+
+	public String getString(final String key, final String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = this.props.getProperty(key);
+		}
+		return (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+	}
+
+	public int getInt(final String key, final int defaultValue) {
+		return (int) this.getLong(key, defaultValue);
+	}
+
+	public long getLong(final String key, final long defaultValue) {
+		String value = this.getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			log.warn("Invalid number for " + key + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(final String key, final boolean defaultValue) {
+		String value = this.getString(key, null);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public File getFile(final String key, final String defaultValue) {
+		return new File(this.getString(key, defaultValue));
+	}
+
+	/**
+	 * Comma separated list of files.
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public File[] getFiles(final String key, final String defaultValue) {
+		List<File> files = new ArrayList<File>();
+		for (String path : this.getString(key, defaultValue).split(",")) {
+			if (path.trim().length() > 0) {
+				files.add(new File(path.trim()));
+			}
+		}
+		return files.toArray(new File[files.size()]);
+	}
+
+}
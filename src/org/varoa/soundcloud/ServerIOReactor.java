@@ -0,0 +1,83 @@
+package org.varoa.soundcloud;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+
+/**
+ * Listening I/O reactor set up from the "reactor." and "socket." keys of the
+ * {@link ServerConfig}. By default there is one I/O dispatcher per core.
+ */
+public class ServerIOReactor extends DefaultListeningIOReactor {
+
+	private final int rcvBufferSize;
+	private final int sndBufferSize;
+
+	public ServerIOReactor(final ServerConfig config) throws IOReactorException {
+		super(createReactorConfig(config));
+		this.rcvBufferSize = config.getInt("socket.rcvBuffer", 0);
+		this.sndBufferSize = config.getInt("socket.sndBuffer", 0);
+	}
+
+	/**
+	 * Build the reactor settings.
+	 * @param config
+	 * @return
+	 */
+	static IOReactorConfig createReactorConfig(final ServerConfig config) {
+		IOReactorConfig reactorConfig = new IOReactorConfig();
+		reactorConfig.setIoThreadCount(config.getInt("reactor.ioThreads", Runtime.getRuntime().availableProcessors()));
+		reactorConfig.setSelectInterval(config.getLong("reactor.selectInterval", 1000));
+		reactorConfig.setShutdownGracePeriod(config.getLong("reactor.shutdownGracePeriod", 500));
+		reactorConfig.setSoTimeout(config.getInt("reactor.soTimeout", 5000));
+		reactorConfig.setConnectTimeout(config.getInt("reactor.connectTimeout", 0));
+		reactorConfig.setSoLinger(config.getInt("reactor.soLinger", -1));
+		reactorConfig.setSoReuseAddress(config.getBoolean("reactor.soReuseAddress", true));
+		reactorConfig.setSoKeepalive(config.getBoolean("reactor.soKeepalive", false));
+		reactorConfig.setTcpNoDelay(config.getBoolean("reactor.tcpNoDelay", true));
+		return reactorConfig;
+	}
+
+	/**
+	 * HTTP parameters for the connections, matching the reactor settings.
+	 * @param config
+	 * @return
+	 */
+	public static HttpParams createHttpParams(final ServerConfig config) {
+		HttpParams params = new SyncBasicHttpParams();
+		params
+			.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, config.getInt("reactor.soTimeout", 5000))
+			.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, config.getInt("socket.bufferSize", 8 * 1024))
+			.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, config.getBoolean("reactor.tcpNoDelay", true))
+			.setParameter(CoreProtocolPNames.ORIGIN_SERVER, "SuperUploader/1.1");
+		return params;
+	}
+
+	/**
+	 * Kernel buffer sizes aren't part of {@link IOReactorConfig} in this
+	 * version of HttpCore, so they're set here on every accepted socket.
+	 */
+	@Override
+	protected void prepareSocket(final Socket socket) throws IOException {
+		super.prepareSocket(socket);
+		if (this.rcvBufferSize > 0) {
+			socket.setReceiveBufferSize(this.rcvBufferSize);
+		}
+		if (this.sndBufferSize > 0) {
+			socket.setSendBufferSize(this.sndBufferSize);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.config.toString();
+	}
+
+}
@@ -1,8 +1,10 @@
 package org.varoa.soundcloud;
 
+import java.net.InetAddress;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.apache.http.HttpInetConnection;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
@@ -11,19 +13,50 @@ import org.apache.log4j.Logger;
  * The challenge doc didn't specify much how sessions should work,
  * since it's supposed to be for each user I assumed IP-per-user
  * for simplicity.
+ *
+ * The id is the MD5 of the client address. It's worked out on the first
+ * request of a connection and kept in its context, which lives as long as
+ * the connection, so later requests on it only pay for a lookup.
  */
 public final class SessionExtractor {
 
+	private static final String SESSION_ATTR = "superuploader.session";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private SessionExtractor() {
+	}
+
 	public static final String extractSession(HttpContext ctx) {
-        String remoteAddr = ctx.getAttribute(ExecutionContext.HTTP_CONNECTION).toString();
-        try {
-        	remoteAddr = remoteAddr.substring(0, remoteAddr.indexOf(":"));
-        	byte[] msgDigest = MessageDigest.getInstance("MD5").digest();
-        	StringBuilder hexString = new StringBuilder();
-        	for (int i=0 ; i<msgDigest.length ; i++) {
-        		hexString.append(Integer.toHexString(0xFF & msgDigest[i]));
-        	}
-        	return hexString.toString();
+		String sessionId = (String) ctx.getAttribute(SESSION_ATTR);
+		if (sessionId == null) {
+			sessionId = computeSession(ctx);
+			if (sessionId != null) {
+				ctx.setAttribute(SESSION_ATTR, sessionId);
+			}
+		}
+		return sessionId;
+	}
+
+	/**
+	 * Digest the remote address of the connection in the context.
+	 * @param ctx
+	 * @return
+	 */
+	private static String computeSession(HttpContext ctx) {
+		Object conn = ctx.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		InetAddress remoteAddr = (conn instanceof HttpInetConnection) ? ((HttpInetConnection) conn).getRemoteAddress() : null;
+		if (remoteAddr == null) {
+			Logger.getLogger(SessionExtractor.class).error("No remote address for connection " + conn);
+			return null;
+		}
+		try {
+			byte[] msgDigest = MessageDigest.getInstance("MD5").digest(remoteAddr.getAddress());
+			char[] hex = new char[msgDigest.length * 2];
+			for (int i = 0; i < msgDigest.length; i++) {
+				hex[2 * i] = HEX[(msgDigest[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[msgDigest[i] & 0xF];
+			}
+			return new String(hex);
 		} catch (NoSuchAlgorithmException e) {
 			Logger.getLogger(SessionExtractor.class).error("Cannot instantiate MD5 MessageDigest!");
 			return null;
@@ -0,0 +1,355 @@
+package org.varoa.soundcloud;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.nio.IOControl;
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control and rate shaping of uploads and downloads.
+ *
+ * Only so many uploads read their body at the same time, the ones over the
+ * limit wait in line, with their input suspended, for one to finish, and
+ * past the length of the line they are refused. Each session gets a token
+ * bucket for the bytes it uploads and another for those it downloads; once
+ * a session is over its rate the connection stops reading, or writing,
+ * until the bucket has refilled enough. Nothing is buffered meanwhile, TCP
+ * flow control slows the client down.
+ *
+ * Every transfer goes through a {@link Flow}, obtained from
+ * {@link #upload(String)} or {@link #download(String)}.
+ */
+public class Throttle {
+
+	private static final Logger log = Logger.getLogger(Throttle.class);
+	/** ms buckets are kept after they fill up */
+	private static final long IDLE_BUCKET = 60 * 1000;
+
+	private final int maxUploads;
+	private final int queueSize;
+	private final long uploadRate;
+	private final long downloadRate;
+	private final long burst;
+	private final ConcurrentMap<String, Bucket> uploadBuckets = new ConcurrentHashMap<String, Bucket>();
+	private final ConcurrentMap<String, Bucket> downloadBuckets = new ConcurrentHashMap<String, Bucket>();
+	private final Queue<Flow> waiting = new ArrayDeque<Flow>();
+	private int uploads = 0;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	/**
+	 * @param maxUploads reading their body at once, 0 for no limit
+	 * @param queueSize uploads waiting for their turn before refusing more
+	 * @param uploadRate bytes per second each session may upload, 0 for no limit
+	 * @param downloadRate bytes per second each session may download, 0 for no limit
+	 * @param burst bytes a session may transfer at once above its rate
+	 */
+	public Throttle(final int maxUploads, final int queueSize, final long uploadRate, final long downloadRate, final long burst) {
+		this.maxUploads = maxUploads;
+		this.queueSize = queueSize;
+		this.uploadRate = uploadRate;
+		this.downloadRate = downloadRate;
+		this.burst = burst;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Throttle");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evict(Throttle.this.uploadBuckets);
+				evict(Throttle.this.downloadBuckets);
+			}
+		}, IDLE_BUCKET, IDLE_BUCKET, TimeUnit.MILLISECONDS);
+		log.info("Throttle: " + this);
+	}
+
+	/**
+	 * A new upload of the session, which has to {@link Flow#acquire} its turn
+	 * before reading.
+	 * @param sessionId
+	 * @return null if too many uploads are waiting already
+	 */
+	public Flow upload(final String sessionId) {
+		Flow flow = new Flow(this.bucket(this.uploadBuckets, sessionId, this.uploadRate), true);
+		synchronized (this.waiting) {
+			if (this.maxUploads <= 0 || this.uploads < this.maxUploads) {
+				this.uploads++;
+				flow.granted = true;
+			} else if (this.waiting.size() < this.queueSize) {
+				this.waiting.add(flow);
+			} else {
+				return null;
+			}
+		}
+		return flow;
+	}
+
+	/**
+	 * A new download of the session, free to go right away.
+	 * @param sessionId
+	 * @return null if downloads aren't limited
+	 */
+	public Flow download(final String sessionId) {
+		if (this.downloadRate <= 0) {
+			return null;
+		}
+		Flow flow = new Flow(this.bucket(this.downloadBuckets, sessionId, this.downloadRate), false);
+		flow.granted = true;
+		return flow;
+	}
+
+	/**
+	 * Uploads reading their body.
+	 * @return
+	 */
+	public int getActiveUploads() {
+		synchronized (this.waiting) {
+			return this.uploads;
+		}
+	}
+
+	/**
+	 * Uploads waiting for their turn.
+	 * @return
+	 */
+	public int getQueuedUploads() {
+		synchronized (this.waiting) {
+			return this.waiting.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[maxUploads=" + this.maxUploads + ", queue=" + this.queueSize + ", uploadRate=" + this.uploadRate
+				+ ", downloadRate=" + this.downloadRate + ", burst=" + this.burst + "]";
+	}
+
+	private Bucket bucket(final ConcurrentMap<String, Bucket> buckets, final String sessionId, final long rate) {
+		if (rate <= 0 || sessionId == null) {
+			return null;
+		}
+		Bucket bucket = buckets.get(sessionId);
+		if (bucket == null) {
+			Bucket created = new Bucket(rate, this.burst);
+			bucket = buckets.putIfAbsent(sessionId, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Drop the buckets that have been full for a while, a session coming back
+	 * later just gets a new one.
+	 * @param buckets
+	 */
+	private static void evict(final ConcurrentMap<String, Bucket> buckets) {
+		long idle = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_BUCKET);
+		for (Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue().isFullSince(idle)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Give the turn of a finished upload to the next one waiting.
+	 */
+	private void next() {
+		Flow flow;
+		synchronized (this.waiting) {
+			flow = this.waiting.poll();
+			if (flow == null) {
+				this.uploads--;
+				return;
+			}
+		}
+		flow.grant();
+	}
+
+	/**
+	 * Token bucket kept as the time at which it will be full again, which
+	 * moves forward by the time it takes to earn the bytes taken.
+	 */
+	private static class Bucket {
+
+		private final double nanosPerByte;
+		private final long burstNanos;
+		private long full;
+
+		Bucket(final long rate, final long burst) {
+			this.nanosPerByte = 1e9 / rate;
+			this.burstNanos = (long) (burst * this.nanosPerByte);
+			this.full = System.nanoTime();
+		}
+
+		/**
+		 * Take the bytes.
+		 * @param bytes
+		 * @return System.nanoTime() at which the bucket is back within its
+		 * burst, 0 if it already is
+		 */
+		synchronized long take(final long bytes) {
+			long now = System.nanoTime();
+			this.full = Math.max(this.full, now) + (long) (bytes * this.nanosPerByte);
+			long until = this.full - this.burstNanos;
+			return (until > now) ? until : 0;
+		}
+
+		synchronized boolean isFullSince(final long time) {
+			return this.full - time < 0;
+		}
+	}
+
+	/**
+	 * One upload or download going through the throttle.
+	 */
+	public class Flow {
+
+		private final Bucket bucket;
+		/** takes one of the upload turns */
+		private final boolean admitted;
+		private boolean granted = false;
+		private boolean released = false;
+		private IOControl suspended = null;
+
+		Flow(final Bucket bucket, final boolean admitted) {
+			this.bucket = bucket;
+			this.admitted = admitted;
+		}
+
+		/**
+		 * Check that the flow may read. If not, input is suspended and
+		 * requested again once its turn comes.
+		 * @param ioctrl
+		 * @return true if it may go on
+		 */
+		public synchronized boolean acquire(final IOControl ioctrl) {
+			if (this.granted || this.released) {
+				return true;
+			}
+			this.suspended = ioctrl;
+			ioctrl.suspendInput();
+			return false;
+		}
+
+		/**
+		 * Its turn came, out of the line already.
+		 */
+		private void grant() {
+			IOControl ioctrl;
+			synchronized (this) {
+				if (this.released) {
+					// gave up meanwhile, pass the turn on
+					Throttle.this.next();
+					return;
+				}
+				this.granted = true;
+				ioctrl = this.suspended;
+				this.suspended = null;
+			}
+			if (ioctrl != null) {
+				ioctrl.requestInput();
+			}
+		}
+
+		/**
+		 * Account for bytes transferred.
+		 * @param bytes
+		 * @return System.nanoTime() before which the flow should pause, 0 if
+		 * it may go on
+		 */
+		public long take(final long bytes) {
+			return (this.bucket == null || bytes <= 0) ? 0 : this.bucket.take(bytes);
+		}
+
+		/**
+		 * Request input now, or at the given time if the flow went over its
+		 * rate.
+		 * @param ioctrl
+		 * @param until as returned by {@link #take(long)}
+		 */
+		public void resumeInput(final IOControl ioctrl, final long until) {
+			long delay = until - System.nanoTime();
+			if (until == 0 || delay <= 0) {
+				ioctrl.requestInput();
+				return;
+			}
+			Throttle.this.scheduler.schedule(new Runnable() {
+				public void run() {
+					ioctrl.requestInput();
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Suspend input until the given time, if the flow went over its rate.
+		 * @param ioctrl
+		 * @param until as returned by {@link #take(long)}
+		 */
+		public void pauseInput(final IOControl ioctrl, final long until) {
+			if (until != 0 && until - System.nanoTime() > 0) {
+				ioctrl.suspendInput();
+				this.resumeInput(ioctrl, until);
+			}
+		}
+
+		/**
+		 * Suspend output until the given time, if the flow went over its rate.
+		 * @param ioctrl
+		 * @param until as returned by {@link #take(long)}
+		 */
+		public void pauseOutput(final IOControl ioctrl, final long until) {
+			long delay = until - System.nanoTime();
+			if (until == 0 || delay <= 0) {
+				return;
+			}
+			ioctrl.suspendOutput();
+			Throttle.this.scheduler.schedule(new Runnable() {
+				public void run() {
+					ioctrl.requestOutput();
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Done with the transfer, lets the next upload in line start. Can be
+		 * called more than once.
+		 */
+		public void release() {
+			boolean wasGranted;
+			synchronized (this) {
+				if (this.released) {
+					return;
+				}
+				this.released = true;
+				wasGranted = this.granted;
+				this.suspended = null;
+			}
+			if (!this.admitted) {
+				return;
+			}
+			if (wasGranted) {
+				Throttle.this.next();
+				return;
+			}
+			synchronized (Throttle.this.waiting) {
+				// if not in the line its turn is being given right now, and
+				// grant() passes it on
+				Throttle.this.waiting.remove(this);
+			}
+		}
+	}
+
+}
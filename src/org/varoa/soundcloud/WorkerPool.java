@@ -0,0 +1,292 @@
+package org.varoa.soundcloud;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the blocking parts of request handling (disk writes mostly) away from
+ * the I/O reactor threads, so a slow disk only delays the requests that are
+ * actually waiting on it rather than every connection on the same dispatcher.
+ *
+ * The amount of queued work is bounded, handlers are expected to answer 503
+ * when {@link #isSaturated()} or when {@link #execute(Runnable)} rejects.
+ * With no threads configured the work runs inline in the caller, which is
+ * how things were done before the pool existed.
+ */
+public class WorkerPool implements Executor {
+
+	private static final Logger log = Logger.getLogger(WorkerPool.class);
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadFactory virtualThreads;
+	private final Semaphore permits;
+	private final int capacity;
+	/** sequences that found the pool full, run by the next worker to free up */
+	private final Queue<Runnable> deferred = new ConcurrentLinkedQueue<Runnable>();
+	private final Runnable runDeferred = new Runnable() {
+		public void run() {
+			WorkerPool.this.runDeferred();
+		}
+	};
+
+	/**
+	 * @param threads workers, 0 to run everything in the caller
+	 * @param queueSize tasks that can wait for a worker before rejecting
+	 * @param virtual use a virtual thread per task when the JVM has them
+	 */
+	public WorkerPool(final int threads, final int queueSize, final boolean virtual) {
+		this.capacity = threads + queueSize;
+		ThreadFactory factory = (virtual && threads > 0) ? createVirtualThreadFactory() : null;
+		if (threads <= 0) {
+			this.executor = null;
+			this.virtualThreads = null;
+			this.permits = null;
+		} else if (factory != null) {
+			this.executor = null;
+			this.virtualThreads = factory;
+			this.permits = new Semaphore(this.capacity);
+		} else {
+			this.virtualThreads = null;
+			this.permits = null;
+			this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(r, "Worker " + this.count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}) {
+				@Override
+				protected void afterExecute(final Runnable r, final Throwable t) {
+					WorkerPool.this.runDeferred();
+				}
+			};
+		}
+		log.info("Worker pool: " + this);
+	}
+
+	/**
+	 * Run the task on a worker.
+	 * @throws RejectedExecutionException if too much work is queued already
+	 */
+	public void execute(final Runnable task) {
+		if (this.executor != null) {
+			this.executor.execute(task);
+		} else if (this.virtualThreads != null) {
+			if (!this.permits.tryAcquire()) {
+				throw new RejectedExecutionException("Worker pool saturated");
+			}
+			this.virtualThreads.newThread(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+						WorkerPool.this.runDeferred();
+					} finally {
+						WorkerPool.this.permits.release();
+					}
+					if (!WorkerPool.this.deferred.isEmpty()) {
+						// deferred while this one was finishing
+						WorkerPool.this.retryDeferred();
+					}
+				}
+			}).start();
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Whether new work would be rejected right now.
+	 * @return
+	 */
+	public boolean isSaturated() {
+		if (this.executor != null) {
+			return this.executor.getQueue().remainingCapacity() == 0;
+		} else if (this.permits != null) {
+			return this.permits.availablePermits() == 0;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether tasks run in the caller rather than on workers.
+	 * @return
+	 */
+	public boolean isInline() {
+		return this.executor == null && this.virtualThreads == null;
+	}
+
+	/**
+	 * Number of tasks waiting or running.
+	 * @return
+	 */
+	public int getQueueDepth() {
+		if (this.executor != null) {
+			return this.executor.getQueue().size() + this.executor.getActiveCount();
+		} else if (this.permits != null) {
+			return this.capacity - this.permits.availablePermits();
+		}
+		return 0;
+	}
+
+	/**
+	 * Executor running the tasks given to it one at a time and in order on
+	 * this pool, for work that must not overlap such as the writes of a single
+	 * upload. If the pool is saturated the task is never rejected, since
+	 * dropping it halfway would lose data, nor run in the caller, which is
+	 * usually an I/O thread: it waits for the next worker to free up.
+	 * @return
+	 */
+	public Executor newSequence() {
+		return new Sequence();
+	}
+
+	/**
+	 * Keep work the pool refused until a worker frees up. Only once the pool
+	 * is shut down, when no worker would ever take it, it runs in the caller.
+	 * @param task
+	 */
+	private void defer(final Runnable task) {
+		this.deferred.add(task);
+		if (this.executor != null && this.executor.isShutdown()) {
+			this.runDeferred();
+			return;
+		}
+		// in case the workers all freed up since the refusal
+		this.retryDeferred();
+	}
+
+	private void retryDeferred() {
+		try {
+			this.execute(this.runDeferred);
+		} catch (RejectedExecutionException e) {
+			// still full, the workers look at the deferred work as they finish
+		}
+	}
+
+	private void runDeferred() {
+		Runnable task;
+		while ((task = this.deferred.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("Worker task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Stop taking work, letting what's queued finish.
+	 */
+	public void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+		}
+	}
+
+	/**
+	 * Wait for the work queued to finish after {@link #shutdown()}.
+	 * @param timeout ms
+	 * @return false if some is still going on
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(final long timeout) throws InterruptedException {
+		if (this.executor != null) {
+			return this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} else if (this.permits != null) {
+			// virtual threads aren't pooled, wait for the permits to be back
+			long deadline = System.currentTimeMillis() + timeout;
+			while (this.permits.availablePermits() < this.capacity) {
+				if (System.currentTimeMillis() >= deadline) {
+					return false;
+				}
+				Thread.sleep(10);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		if (this.executor != null) {
+			return this.executor.getMaximumPoolSize() + " threads, " + this.capacity + " tasks max";
+		} else if (this.virtualThreads != null) {
+			return "virtual threads, " + this.capacity + " tasks max";
+		}
+		return "inline";
+	}
+
+	/**
+	 * Thread.ofVirtual() is only there from Java 21 on, look it up so we still
+	 * build and run on Java 9 to 20.
+	 * @return the factory, null if not available
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Worker ", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			log.warn("Virtual threads not available, using platform threads");
+			return null;
+		}
+	}
+
+	private class Sequence implements Executor {
+
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running = false;
+
+		public void execute(final Runnable task) {
+			synchronized (this) {
+				this.tasks.add(task);
+				if (this.running) {
+					return;
+				}
+				this.running = true;
+			}
+			Runnable drain = new Runnable() {
+				public void run() {
+					Sequence.this.drain();
+				}
+			};
+			try {
+				WorkerPool.this.execute(drain);
+			} catch (RejectedExecutionException e) {
+				WorkerPool.this.defer(drain);
+			}
+		}
+
+		private void drain() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					task = this.tasks.poll();
+					if (task == null) {
+						this.running = false;
+						return;
+					}
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.error("Worker task failed", e);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a single copy of each distinct content uploaded. Completed uploads
+ * are stored under their SHA-256 in the blob folder, and the file in the
+ * session folder becomes a hard link to that blob, so the same track
+ * uploaded by many users takes the disk space of one. Downloads keep
+ * reading the session file and never know.
+ *
+ * The digest is one of the {@link Checksums} of the upload. If the file
+ * system can't link, files are left as they are.
+ *
+ * A blob only the store links to is no longer part of any upload and is
+ * removed: right away when an upload replaces a file through
+ * {@link #delete(File)}, and by {@link #sweep()} for files gone any other
+ * way. A blob removed while a new upload links to it costs that upload
+ * its sharing, never its content, since the upload keeps its own link.
+ */
+public class BlobStore {
+
+	private static Logger log = Logger.getLogger(BlobStore.class);
+	static final String ALGORITHM = "sha-256";
+	private final File root;
+
+	/**
+	 * @param root folder for the blobs, must be on the same file system as
+	 * the session folders
+	 */
+	public BlobStore(final File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Make the complete file share its content with the blob of the same
+	 * digest, creating the blob from it if it's the first of its kind.
+	 *
+	 * @param file
+	 * @param hex its {@value #ALGORITHM} checksum
+	 * @throws IOException
+	 */
+	void store(final File file, final String hex) throws IOException {
+		File folder = new File(this.root, hex.substring(0, 2));
+		if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException("Can't create blob folder " + folder);
+		}
+		Path blob = new File(folder, hex).toPath();
+		Path path = file.toPath();
+		try {
+			Files.createLink(blob, path);
+			if (log.isDebugEnabled()) {
+				log.debug("New blob " + hex + " for " + file);
+			}
+			return;
+		} catch (FileAlreadyExistsException e) {
+			// seen before, share it
+		} catch (UnsupportedOperationException e) {
+			log.warn("Hard links not supported, not deduplicating " + file);
+			return;
+		}
+		if (Files.isSameFile(blob, path)) {
+			return;
+		}
+		// link under a temporary name and swap, so the file is never missing
+		Path tmp = new File(file.getParentFile(), "." + file.getName() + "." + hex).toPath();
+		Files.deleteIfExists(tmp);
+		try {
+			Files.createLink(tmp, blob);
+		} catch (NoSuchFileException e) {
+			// reclaimed meanwhile, this one takes its place
+			Files.createLink(blob, path);
+			return;
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (log.isDebugEnabled()) {
+			log.debug("Deduplicated " + file + " as blob " + hex + ", " + Files.size(blob) + " bytes saved");
+		}
+	}
+
+	/**
+	 * Remove a session file, and its blob if nothing else links to it.
+	 * @param file
+	 * @throws IOException
+	 */
+	void delete(final File file) throws IOException {
+		Map<String, String> sums = Checksums.load(file);
+		Files.deleteIfExists(file.toPath());
+		String hex = (sums == null) ? null : sums.get(ALGORITHM);
+		if (hex != null && hex.length() > 2) {
+			this.reclaim(new File(new File(this.root, hex.substring(0, 2)), hex).toPath());
+		}
+	}
+
+	/**
+	 * Remove every blob no session file links to any more.
+	 * @return how many were removed
+	 */
+	int sweep() {
+		int count = 0;
+		File[] folders = this.root.listFiles();
+		if (folders == null) {
+			return 0;
+		}
+		for (File folder : folders) {
+			if (!folder.isDirectory()) {
+				continue;
+			}
+			try {
+				DirectoryStream<Path> blobs = Files.newDirectoryStream(folder.toPath());
+				try {
+					for (Path blob : blobs) {
+						if (this.reclaim(blob)) {
+							count++;
+						}
+					}
+				} finally {
+					blobs.close();
+				}
+			} catch (IOException e) {
+				log.warn("Could not sweep " + folder, e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove the blob if the store holds the last link to it.
+	 * @param blob
+	 * @return whether it was removed
+	 */
+	private boolean reclaim(final Path blob) {
+		try {
+			Integer links = (Integer) Files.getAttribute(blob, "unix:nlink");
+			if (links.intValue() > 1) {
+				return false;
+			}
+			Files.deleteIfExists(blob);
+			if (log.isDebugEnabled()) {
+				log.debug("Reclaimed blob " + blob.getFileName());
+			}
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			// no link count to go by, keep it
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		} catch (IOException e) {
+			log.warn("Could not reclaim blob " + blob, e);
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BlobStore {" + this.root + "}";
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+/**
+ * A body kept in a shared buffer, typically direct and read only, that is
+ * written to the socket as it is. Each entity only holds its own position
+ * on it, so any number of responses can send the same buffer at once.
+ */
+class BufferEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+	private final ByteBuffer content;
+	private ByteBuffer buffer = null;
+
+	/**
+	 * @param content sent from its position to its limit, never modified
+	 * @param contentType
+	 * @param contentEncoding null if not encoded
+	 */
+	BufferEntity(final ByteBuffer content, final String contentType, final String contentEncoding) {
+		this.content = content;
+		this.setContentType(contentType);
+		if (contentEncoding != null) {
+			this.setContentEncoding(contentEncoding);
+		}
+	}
+
+	@Override
+	public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+		if (this.buffer == null) {
+			this.buffer = this.content.duplicate();
+		}
+		encoder.write(this.buffer);
+		if (!this.buffer.hasRemaining()) {
+			encoder.complete();
+			this.buffer = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		this.buffer = null;
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.content.remaining();
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public InputStream getContent() {
+		byte[] bytes = new byte[this.content.remaining()];
+		this.content.duplicate().get(bytes);
+		return new ByteArrayInputStream(bytes);
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		Channels.newChannel(outstream).write(this.content.duplicate());
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+
+/**
+ * The content stored isn't the one the client sent, as told by the
+ * checksums it gave along.
+ */
+class ChecksumMismatchException extends IOException {
+
+	private static final long serialVersionUID = -6504937245418201632L;
+
+	ChecksumMismatchException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,270 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * The checksums computed for every upload, e.g. "crc32c,sha-256". Any
+ * digest of the JVM can be named besides crc32c.
+ *
+ * Checksums are fed the content as it's written, so they cost no extra
+ * read of the file, and are kept beside it in a ".name.sums" file for
+ * downloads to use as ETag. Clients can have them checked by sending
+ * them in a {@value #HEADER} header, e.g. "X-Checksum: crc32c=e3069283",
+ * and get them back in the same header of the response.
+ */
+public class Checksums {
+
+	static final String HEADER = "X-Checksum";
+	static final String CRC32C = "crc32c";
+	private static final String LENGTH = "length";
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private final String[] algorithms;
+
+	/**
+	 * @param algorithms comma separated, empty for none
+	 * @throws IllegalArgumentException if one isn't known
+	 */
+	public Checksums(final String algorithms) {
+		List<String> names = new ArrayList<String>();
+		for (String name : algorithms.split(",")) {
+			name = name.trim().toLowerCase(Locale.ENGLISH);
+			if (name.length() > 0 && !names.contains(name)) {
+				if (!isSupported(name)) {
+					throw new IllegalArgumentException("Unknown checksum " + name);
+				}
+				names.add(name);
+			}
+		}
+		this.algorithms = names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * The algorithms configured, the first one gives downloads their ETag.
+	 * @return
+	 */
+	String[] getAlgorithms() {
+		return this.algorithms;
+	}
+
+	static boolean isSupported(final String algorithm) {
+		if (CRC32C.equals(algorithm)) {
+			return true;
+		}
+		try {
+			MessageDigest.getInstance(algorithm);
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The checksums sent by the client in a {@value #HEADER} header, those
+	 * of unknown algorithms left out.
+	 * @param header null if there's none
+	 * @return algorithm to lower case hex value, empty if none
+	 */
+	static Map<String, String> parse(final String header) {
+		Map<String, String> sums = new LinkedHashMap<String, String>();
+		if (header == null) {
+			return sums;
+		}
+		for (String sum : header.split(",")) {
+			int eq = sum.indexOf('=');
+			if (eq <= 0) {
+				continue;
+			}
+			String name = sum.substring(0, eq).trim().toLowerCase(Locale.ENGLISH);
+			if (isSupported(name)) {
+				sums.put(name, sum.substring(eq + 1).trim().toLowerCase(Locale.ENGLISH));
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * As sent in a {@value #HEADER} header.
+	 * @param sums
+	 * @return
+	 */
+	static String format(final Map<String, String> sums) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> sum : sums.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(sum.getKey()).append('=').append(sum.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The file the checksums of the given one are kept in.
+	 * @param file
+	 * @return
+	 */
+	static File getSumsFile(final File file) {
+		return new File(file.getParentFile(), "." + file.getName() + ".sums");
+	}
+
+	/**
+	 * Keep the checksums beside the file, replacing any previous ones.
+	 * @param file
+	 * @param sums
+	 * @throws IOException
+	 */
+	static void save(final File file, final Map<String, String> sums) throws IOException {
+		File target = getSumsFile(file);
+		File tmp = new File(target.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), ASCII);
+		try {
+			out.write(LENGTH + "=" + file.length() + "\n");
+			for (Map.Entry<String, String> sum : sums.entrySet()) {
+				out.write(sum.getKey() + "=" + sum.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The checksums kept for the file.
+	 * @param file
+	 * @return null if there are none, or they are of a different content
+	 */
+	static Map<String, String> load(final File file) {
+		Map<String, String> sums = new LinkedHashMap<String, String>();
+		long length = -1;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(getSumsFile(file)), ASCII));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int eq = line.indexOf('=');
+					if (eq <= 0) {
+						continue;
+					}
+					if (LENGTH.equals(line.substring(0, eq))) {
+						length = Long.parseLong(line.substring(eq + 1));
+					} else {
+						sums.put(line.substring(0, eq), line.substring(eq + 1));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// none kept, or unreadable
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return (length == file.length()) ? sums : null;
+	}
+
+	/**
+	 * Forget the checksums of a file being replaced.
+	 * @param file
+	 * @throws IOException
+	 */
+	static void delete(final File file) throws IOException {
+		Files.deleteIfExists(getSumsFile(file).toPath());
+	}
+
+	@Override
+	public String toString() {
+		return "Checksums " + Arrays.toString(this.algorithms);
+	}
+
+	/**
+	 * Several checksums of the same content, computed in one pass.
+	 */
+	static class Digest {
+
+		private final String[] names;
+		private final MessageDigest[] digests;
+		private final CRC32C crc;
+
+		/**
+		 * @param algorithms supported ones, see {@link Checksums#isSupported(String)}
+		 */
+		Digest(final List<String> algorithms) {
+			this.names = algorithms.toArray(new String[algorithms.size()]);
+			this.digests = new MessageDigest[this.names.length];
+			CRC32C crc = null;
+			for (int i = 0; i < this.names.length; i++) {
+				if (CRC32C.equals(this.names[i])) {
+					crc = new CRC32C();
+				} else {
+					try {
+						this.digests[i] = MessageDigest.getInstance(this.names[i]);
+					} catch (NoSuchAlgorithmException e) {
+						throw new IllegalArgumentException("Unknown checksum " + this.names[i], e);
+					}
+				}
+			}
+			this.crc = crc;
+		}
+
+		/**
+		 * Feed the remaining content of the buffer, leaving its position
+		 * where it was.
+		 * @param data
+		 */
+		void update(final ByteBuffer data) {
+			for (MessageDigest digest : this.digests) {
+				if (digest != null) {
+					digest.update(data.duplicate());
+				}
+			}
+			if (this.crc != null) {
+				this.crc.update(data.duplicate());
+			}
+		}
+
+		/**
+		 * @return algorithm to lower case hex value, in the order given
+		 */
+		Map<String, String> finish() {
+			Map<String, String> sums = new LinkedHashMap<String, String>();
+			for (int i = 0; i < this.names.length; i++) {
+				if (this.digests[i] == null) {
+					sums.put(this.names[i], String.format("%08x", this.crc.getValue()));
+				} else {
+					sums.put(this.names[i], toHex(this.digests[i].digest()));
+				}
+			}
+			return sums;
+		}
+	}
+
+	static String toHex(final byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+}
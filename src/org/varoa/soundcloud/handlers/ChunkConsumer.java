@@ -0,0 +1,183 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.varoa.soundcloud.RequestRejectedException;
+import org.varoa.soundcloud.SuperUploaderException;
+import org.varoa.soundcloud.Throttle;
+import org.varoa.soundcloud.WorkerPool;
+
+/**
+ * Streams the body of a chunk of a {@link ResumableUpload} to its offset in
+ * the destination file as it arrives. Like the {@link UploadRequestConsumer}
+ * the reading is done on the I/O thread and the writing on the workers, with
+ * input suspended in between. The body must be exactly as long as the chunk,
+ * one going past it is refused with a 413 straight away.
+ */
+class ChunkConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ResumableUpload upload;
+	private final int index;
+	private final long end;
+	private final Executor sequence;
+	private final Throttle.Flow flow;
+	private volatile boolean busy = false;
+	private volatile Exception failure = null;
+	private long position;
+	private HttpRequest request = null;
+	private ByteBuffer buffer = null;
+
+	/**
+	 * @param upload
+	 * @param index of the chunk
+	 * @param workers
+	 * @param flow the chunk is admitted and shaped by
+	 */
+	ChunkConsumer(final ResumableUpload upload, final int index, final WorkerPool workers, final Throttle.Flow flow) {
+		this.flow = flow;
+		this.upload = upload;
+		this.index = index;
+		this.position = upload.getChunkOffset(index);
+		this.end = this.position + upload.getChunkLength(index);
+		this.sequence = workers.newSequence();
+	}
+
+	ResumableUpload getUpload() {
+		return this.upload;
+	}
+
+	int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * The error that prevented the chunk from being stored, if any.
+	 * @return
+	 */
+	Exception getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * Executor running the writes of this chunk, anything given to it runs
+	 * after the data received so far has been stored.
+	 * @return
+	 */
+	Executor getExecutor() {
+		return this.sequence;
+	}
+
+	private void fail(final Exception failure) {
+		if (this.failure == null) {
+			this.failure = failure;
+		}
+	}
+
+	@Override
+	protected void onRequestReceived(final HttpRequest request) {
+		this.request = request;
+	}
+
+	@Override
+	protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+		long length = entity.getContentLength();
+		if (length >= 0 && length != this.end - this.position) {
+			this.fail(new SuperUploaderException("Chunk " + this.index + " must be " + (this.end - this.position) + " bytes, got " + length));
+		}
+	}
+
+	@Override
+	protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+		if (this.busy || !this.flow.acquire(ioctrl)) {
+			return;
+		}
+		if (this.buffer == null) {
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		if (this.failure != null || this.upload.getUploadRequest().getFailure() != null) {
+			// nothing useful will come out of it, drain the rest of the body
+			do {
+				this.buffer.clear();
+			} while (decoder.read(this.buffer) > 0);
+			return;
+		}
+		int read;
+		do {
+			read = decoder.read(this.buffer);
+		} while (read > 0 && this.buffer.hasRemaining());
+		if (this.buffer.position() == 0) {
+			return;
+		}
+		if (this.position + this.buffer.position() > this.end) {
+			this.buffer.clear();
+			throw new RequestRejectedException(HttpStatus.SC_REQUEST_TOO_LONG,
+					"Chunk " + this.index + " is longer than " + (this.end - this.upload.getChunkOffset(this.index)) + " bytes").asIOException();
+		}
+		final boolean last = decoder.isCompleted();
+		final long until = this.flow.take(this.buffer.position());
+		this.busy = true;
+		ioctrl.suspendInput();
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				ByteBuffer buffer = ChunkConsumer.this.buffer;
+				try {
+					buffer.flip();
+					int length = buffer.remaining();
+					ChunkConsumer.this.upload.write(buffer, ChunkConsumer.this.position);
+					ChunkConsumer.this.position += length;
+				} catch (IOException e) {
+					ChunkConsumer.this.fail(e);
+				} finally {
+					buffer.clear();
+					ChunkConsumer.this.busy = false;
+					if (!last) {
+						ChunkConsumer.this.flow.resumeInput(ioctrl, until);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * The chunk only counts as received once all of it has been written.
+	 */
+	@Override
+	protected HttpRequest buildResult(final HttpContext context) {
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				if (ChunkConsumer.this.failure != null) {
+					return;
+				}
+				if (ChunkConsumer.this.position != ChunkConsumer.this.end) {
+					ChunkConsumer.this.fail(new SuperUploaderException("Truncated chunk " + ChunkConsumer.this.index));
+				} else {
+					ChunkConsumer.this.upload.received(ChunkConsumer.this.index);
+				}
+			}
+		});
+		return this.request;
+	}
+
+	@Override
+	protected void releaseResources() {
+		this.flow.release();
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				ChunkConsumer.this.buffer = null;
+			}
+		});
+	}
+
+}
@@ -1,15 +1,22 @@
 package org.varoa.soundcloud.handlers;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
 import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
 import org.apache.http.nio.protocol.HttpAsyncExchange;
@@ -18,21 +25,38 @@ import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
+import org.varoa.soundcloud.RequestRejectedException;
 import org.varoa.soundcloud.SessionExtractor;
+import org.varoa.soundcloud.WorkerPool;
 
 /**
- * Deals with requests that want to store comments in the current session.
+ * Deals with requests that want to store comments in the current session,
+ * POST stores the "c" field of the form, GET lists the comments of the
+ * session as JSON. Comments go to the {@link CommentStore}, the response is
+ * sent once the comment is on disk. Listing reads them back from the disk,
+ * so it's done on the workers.
  */
 public class CommentHandler implements HttpAsyncRequestHandler<HttpRequest> {
 
 	private static Logger log = Logger.getLogger(CommentHandler.class);
-	private File docRoot = null;
+	private static final String FIELD = "c";
+	private CommentStore store = null;
+	private WorkerPool workers = null;
 
-	public CommentHandler(final File docRoot) {
-		this.docRoot = docRoot;
+	/**
+	 * @param store
+	 * @param workers reading the comments listed
+	 */
+	public CommentHandler(final CommentStore store, final WorkerPool workers) {
+		this.store = store;
+		this.workers = workers;
 	}
 
-	public HttpAsyncRequestConsumer<HttpRequest> processRequest(final HttpRequest request, final HttpContext context) {
+	public HttpAsyncRequestConsumer<HttpRequest> processRequest(final HttpRequest request, final HttpContext context) throws HttpException {
+		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+		if (!"POST".equals(method) && !"GET".equals(method)) {
+			throw new MethodNotSupportedException(method + " method not supported");
+		}
 		// Buffer request content in memory for simplicity
 		return new BasicAsyncRequestConsumer();
 	}
@@ -41,18 +65,125 @@ public class CommentHandler implements HttpAsyncRequestHandler<HttpRequest> {
 	 * Implements contract from {@link HttpAsyncRequestHandler}.
 	 */
 	final public void handle(final HttpRequest request, final HttpAsyncExchange httpExchange, final HttpContext context) throws HttpException, IOException {
-        String sessionId = SessionExtractor.extractSession(context);
-        HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
-        byte[] data = (entity == null) ? new byte [0] : EntityUtils.toByteArray(entity);
-        String sData = new String(data);
-        sData = sData.substring(sData.indexOf("=") + 1);
-        log.info("Storing comment for session " + sessionId + ": " + sData);
-        FileOutputStream fos = new FileOutputStream(new File(this.docRoot, sessionId + "/comment.txt"));
-        fos.write(sData.getBytes());
-        fos.close();
-        HttpResponse response = httpExchange.getResponse();
-        response.setEntity(new StringEntity("OK"));
+		final String sessionId = SessionExtractor.extractSession(context);
+		if (sessionId == null) {
+			throw new RequestRejectedException(HttpStatus.SC_FORBIDDEN, "No session");
+		}
+		if (!(request instanceof HttpEntityEnclosingRequest)) {
+			try {
+				this.workers.execute(new Runnable() {
+					public void run() {
+						CommentHandler.this.list(sessionId, httpExchange);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Server busy, try again later");
+			}
+			return;
+		}
+		final String comment = this.getComment(((HttpEntityEnclosingRequest) request).getEntity());
+		final HttpResponse response = httpExchange.getResponse();
+		boolean queued = this.store.append(sessionId, comment, new FutureCallback<CommentStore.Comment>() {
+			public void completed(final CommentStore.Comment stored) {
+				response.setEntity(new NStringEntity("OK", ContentType.DEFAULT_TEXT));
+				httpExchange.submitResponse(new BasicAsyncResponseProducer(response));
+			}
+
+			public void failed(final Exception e) {
+				log.error("Could not store comment for session " + sessionId, e);
+				response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+				httpExchange.submitResponse(new BasicAsyncResponseProducer(response));
+			}
+
+			public void cancelled() {
+				this.failed(null);
+			}
+		});
+		if (!queued) {
+			throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Server busy, try again later");
+		}
+	}
+
+	/**
+	 * The comment in the body, the "c" field of an url encoded form or the
+	 * whole body as text otherwise.
+	 *
+	 * @param entity
+	 * @return
+	 * @throws IOException
+	 * @throws HttpException if the field can't be decoded
+	 */
+	private String getComment(final HttpEntity entity) throws IOException, HttpException {
+		if (entity == null) {
+			return "";
+		}
+		ContentType contentType = ContentType.get(entity);
+		Charset charset = (contentType == null || contentType.getCharset() == null) ? Charset.forName("UTF-8") : contentType.getCharset();
+		String body = EntityUtils.toString(entity, charset);
+		if (contentType == null || !"application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getMimeType())) {
+			return body;
+		}
+		for (String field : body.split("&")) {
+			int eq = field.indexOf('=');
+			String name = (eq < 0) ? field : field.substring(0, eq);
+			if (FIELD.equals(name)) {
+				try {
+					return URLDecoder.decode(field.substring(eq + 1), charset.name());
+				} catch (IllegalArgumentException e) {
+					throw new RequestRejectedException(HttpStatus.SC_BAD_REQUEST, "Malformed comment");
+				}
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * Send the comments of the session, on a worker.
+	 *
+	 * @param sessionId
+	 * @param httpExchange
+	 */
+	private void list(final String sessionId, final HttpAsyncExchange httpExchange) {
+		HttpResponse response = httpExchange.getResponse();
+		List<CommentStore.Comment> comments;
+		try {
+			comments = this.store.getComments(sessionId);
+		} catch (IOException e) {
+			log.error("Could not read comments of session " + sessionId, e);
+			response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+			httpExchange.submitResponse(new BasicAsyncResponseProducer(response));
+			return;
+		}
+		StringBuilder sb = new StringBuilder("[");
+		for (CommentStore.Comment comment : comments) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append("{\"time\":").append(comment.getTime()).append(",\"comment\":\"");
+			escape(comment.getText(), sb);
+			sb.append("\"}");
+		}
+		sb.append(']');
+		response.setEntity(new NStringEntity(sb.toString(), ContentType.APPLICATION_JSON));
 		httpExchange.submitResponse(new BasicAsyncResponseProducer(response));
 	}
 
+	/**
+	 * Append the text as the content of a JSON string.
+	 * @param text
+	 * @param sb
+	 */
+	static void escape(final String text, final StringBuilder sb) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
 }
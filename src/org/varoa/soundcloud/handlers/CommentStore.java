@@ -0,0 +1,453 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the comments of all sessions in an append-only log split in
+ * segments of about segmentSize bytes. A single writer thread takes every
+ * comment waiting when it's free, appends them all in one write and syncs
+ * once for the lot (group commit), so a burst of comments turns into a few
+ * large sequential writes instead of a file opened per comment.
+ *
+ * Where each comment is in the log is kept in memory by session, rebuilt
+ * from the segments on startup; a record left half written by a crash is
+ * cut off then. If a new segment can't be started the current one takes up
+ * to another segmentSize while it's retried, then comments are refused.
+ * Each record is
+ * <pre>
+ * int length, int crc32, long time, short session length, session, comment
+ * </pre>
+ * with length and crc covering everything after the crc, strings in UTF-8.
+ */
+public class CommentStore {
+
+	private static final Logger log = Logger.getLogger(CommentStore.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PREFIX = "comments-";
+	private static final String SUFFIX = ".log";
+	/** length and crc */
+	private static final int HEADER = 8;
+	/** time and session length */
+	private static final int FIXED = 10;
+	private static final Pending STOP = new Pending(null, null, 0, null);
+	/** ms before a failed roll over is tried again, doubled up to the max */
+	private static final long ROLL_RETRY = 1000;
+	private static final long ROLL_RETRY_MAX = 60 * 1000;
+
+	private final File dir;
+	private final long segmentSize;
+	private final int batchSize;
+	private final boolean sync;
+	private final BlockingQueue<Pending> queue;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/** Comments of each session, only appended to by the writer */
+	private final ConcurrentMap<String, Entries> index = new ConcurrentHashMap<String, Entries>();
+	private final Thread writer;
+	private Segment current;
+	private long rollRetry = 0;
+	private long nextRoll = 0;
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+	/**
+	 * A stored comment.
+	 */
+	public static class Comment {
+
+		private final long time;
+		private final String text;
+
+		Comment(final long time, final String text) {
+			this.time = time;
+			this.text = text;
+		}
+
+		/**
+		 * When it was stored, in ms since the epoch.
+		 * @return
+		 */
+		public long getTime() {
+			return this.time;
+		}
+
+		public String getText() {
+			return this.text;
+		}
+	}
+
+	private static class Pending {
+
+		final String sessionId;
+		final String text;
+		final byte[] comment;
+		final long time;
+		final FutureCallback<Comment> callback;
+
+		Pending(final String sessionId, final String text, final long time, final FutureCallback<Comment> callback) {
+			this.sessionId = sessionId;
+			this.text = text;
+			this.comment = (text == null) ? null : text.getBytes(UTF8);
+			this.time = time;
+			this.callback = callback;
+		}
+	}
+
+	private static class Segment {
+
+		final File file;
+		final FileChannel channel;
+		/** only changed by the writer, read after the index points past it */
+		long size;
+
+		Segment(final File file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = this.channel.size();
+		}
+	}
+
+	/**
+	 * Where a comment is.
+	 */
+	private static class Entry {
+
+		final Segment segment;
+		/** of the comment text */
+		final long position;
+		final int length;
+		final long time;
+
+		Entry(final Segment segment, final long position, final int length, final long time) {
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The comments of a session. The writer fills the array and publishes
+	 * how much of it is in use, moving to one twice as big when it's full,
+	 * so readers take the count and then the array without any locking.
+	 */
+	private static class Entries {
+
+		volatile Entry[] entries = new Entry[4];
+		volatile int count = 0;
+
+		void add(final Entry entry) {
+			Entry[] current = this.entries;
+			if (this.count == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				this.entries = current;
+			}
+			current[this.count] = entry;
+			this.count++;
+		}
+	}
+
+	/**
+	 * Opens the log in the folder, recovering what's there.
+	 *
+	 * @param dir folder of the segments, created if needed
+	 * @param segmentSize bytes after which a new segment is started
+	 * @param queueSize comments that can wait to be written
+	 * @param batchSize comments written at most in one go
+	 * @param sync fsync every batch before acknowledging it
+	 * @throws IOException
+	 */
+	public CommentStore(final File dir, final long segmentSize, final int queueSize, final int batchSize, final boolean sync) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.batchSize = Math.max(1, batchSize);
+		this.sync = sync;
+		this.queue = new ArrayBlockingQueue<Pending>(Math.max(1, queueSize));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create folder " + dir);
+		}
+		this.recover();
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "Comment log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queue a comment to be stored, the callback is told on the writer thread
+	 * once it's on disk.
+	 *
+	 * @param sessionId
+	 * @param comment
+	 * @param callback
+	 * @return false if too many comments are waiting already
+	 */
+	public boolean append(final String sessionId, final String comment, final FutureCallback<Comment> callback) {
+		return this.queue.offer(new Pending(sessionId, comment, System.currentTimeMillis(), callback));
+	}
+
+	/**
+	 * The comments of a session, oldest first.
+	 *
+	 * @param sessionId
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Comment> getComments(final String sessionId) throws IOException {
+		Entries session = this.index.get(sessionId);
+		if (session == null) {
+			return Collections.emptyList();
+		}
+		// the count first, the array then is at least that long
+		int count = session.count;
+		Entry[] entries = session.entries;
+		List<Comment> comments = new ArrayList<Comment>(count);
+		for (int i = 0; i < count; i++) {
+			Entry entry = entries[i];
+			ByteBuffer text = ByteBuffer.allocate(entry.length);
+			while (text.hasRemaining()) {
+				if (entry.segment.channel.read(text, entry.position + text.position()) < 0) {
+					throw new IOException("Unexpected end of " + entry.segment.file);
+				}
+			}
+			comments.add(new Comment(entry.time, new String(text.array(), UTF8)));
+		}
+		return comments;
+	}
+
+	/**
+	 * Write what's queued and close the log.
+	 */
+	public void close() {
+		try {
+			this.queue.put(STOP);
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Index every segment, cutting off whatever follows the last whole
+	 * record of each.
+	 *
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+		String[] names = this.dir.list(new FilenameFilter() {
+			public boolean accept(final File d, final String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		int comments = 0;
+		for (String name : names) {
+			Segment segment = new Segment(new File(this.dir, name));
+			this.segments.add(segment);
+			comments += this.scan(segment);
+		}
+		if (this.segments.isEmpty()) {
+			this.segments.add(new Segment(this.segmentFile(1)));
+		}
+		this.current = this.segments.get(this.segments.size() - 1);
+		log.info("Comment log in " + this.dir + ": " + this.segments.size() + " segments, " + comments + " comments of " + this.index.size() + " sessions");
+	}
+
+	private int scan(final Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		long position = 0;
+		int comments = 0;
+		CRC32 crc = new CRC32();
+		while (position < segment.size) {
+			header.clear();
+			segment.channel.read(header, position);
+			int length = header.getInt(0);
+			if (header.hasRemaining() || length < FIXED || length > segment.size - position - HEADER) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.allocate(length);
+			segment.channel.read(record, position + HEADER);
+			crc.reset();
+			crc.update(record.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4)) {
+				break;
+			}
+			long time = record.getLong(0);
+			int sessionLength = record.getShort(8) & 0xFFFF;
+			if (FIXED + sessionLength > length) {
+				break;
+			}
+			String sessionId = new String(record.array(), FIXED, sessionLength, UTF8);
+			long text = position + HEADER + FIXED + sessionLength;
+			this.index(sessionId, new Entry(segment, text, length - FIXED - sessionLength, time));
+			comments++;
+			position += HEADER + length;
+		}
+		if (position < segment.size) {
+			log.warn("Dropping " + (segment.size - position) + " bytes of incomplete records at the end of " + segment.file);
+			segment.channel.truncate(position);
+			segment.size = position;
+		}
+		return comments;
+	}
+
+	private File segmentFile(final int number) {
+		return new File(this.dir, String.format("%s%08d%s", PREFIX, number, SUFFIX));
+	}
+
+	private void index(final String sessionId, final Entry entry) {
+		Entries entries = this.index.get(sessionId);
+		if (entries == null) {
+			entries = new Entries();
+			this.index.put(sessionId, entries);
+		}
+		entries.add(entry);
+	}
+
+	private void writeLoop() {
+		List<Pending> batch = new ArrayList<Pending>(this.batchSize);
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				batch.add(this.queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			// everything that piled up meanwhile goes in the same commit
+			this.queue.drainTo(batch, this.batchSize - 1);
+			if (batch.remove(STOP)) {
+				stopping = true;
+				this.queue.drainTo(batch);
+			}
+			int start = 0;
+			while (start < batch.size()) {
+				start = this.commit(batch, start);
+			}
+			batch.clear();
+		}
+		for (Segment segment : this.segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				log.error("Cannot close " + segment.file, e);
+			}
+		}
+	}
+
+	/**
+	 * Write the pending comments from start on, as many as fit in the
+	 * current segment, and tell their callbacks.
+	 *
+	 * @param batch
+	 * @param start
+	 * @return index of the first one left
+	 */
+	private int commit(final List<Pending> batch, final int start) {
+		if (this.current.size >= this.segmentSize && System.currentTimeMillis() >= this.nextRoll) {
+			try {
+				this.roll();
+				this.rollRetry = 0;
+			} catch (IOException e) {
+				this.rollRetry = Math.min(Math.max(ROLL_RETRY, this.rollRetry * 2), ROLL_RETRY_MAX);
+				this.nextRoll = System.currentTimeMillis() + this.rollRetry;
+				log.error("Cannot start a new comment log segment, retrying in " + this.rollRetry + " ms", e);
+			}
+		}
+		Segment segment = this.current;
+		// while a new segment can't be started, this one takes another one's worth
+		long limit = (segment.size < this.segmentSize) ? this.segmentSize : this.segmentSize * 2;
+		if (segment.size >= limit) {
+			IOException full = new IOException("Comment log segment " + segment.file + " is full and no new one can be started");
+			for (int i = start; i < batch.size(); i++) {
+				batch.get(i).callback.failed(full);
+			}
+			return batch.size();
+		}
+		this.buffer.clear();
+		int end = start;
+		long[] positions = new long[batch.size()];
+		while (end < batch.size()) {
+			Pending pending = batch.get(end);
+			byte[] session = pending.sessionId.getBytes(UTF8);
+			int length = FIXED + session.length + pending.comment.length;
+			if (end > start && segment.size + this.buffer.position() + HEADER + length > limit) {
+				break;
+			}
+			if (this.buffer.remaining() < HEADER + length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(this.buffer.capacity() * 2, this.buffer.position() + HEADER + length));
+				this.buffer.flip();
+				bigger.put(this.buffer);
+				this.buffer = bigger;
+			}
+			int recordStart = this.buffer.position();
+			this.buffer.putInt(length).putInt(0);
+			this.buffer.putLong(pending.time).putShort((short) session.length).put(session);
+			positions[end] = segment.size + this.buffer.position();
+			this.buffer.put(pending.comment);
+			CRC32 crc = new CRC32();
+			crc.update(this.buffer.array(), recordStart + HEADER, length);
+			this.buffer.putInt(recordStart + 4, (int) crc.getValue());
+			end++;
+		}
+		this.buffer.flip();
+		try {
+			long position = segment.size;
+			while (this.buffer.hasRemaining()) {
+				position += segment.channel.write(this.buffer, position);
+			}
+			if (this.sync) {
+				segment.channel.force(false);
+			}
+		} catch (IOException e) {
+			log.error("Cannot write to " + segment.file, e);
+			try {
+				segment.channel.truncate(segment.size);
+			} catch (IOException ex) {
+				log.error("Cannot truncate " + segment.file, ex);
+			}
+			for (int i = start; i < end; i++) {
+				batch.get(i).callback.failed(e);
+			}
+			return end;
+		}
+		segment.size += this.buffer.limit();
+		for (int i = start; i < end; i++) {
+			Pending pending = batch.get(i);
+			this.index(pending.sessionId, new Entry(segment, positions[i], pending.comment.length, pending.time));
+		}
+		for (int i = start; i < end; i++) {
+			Pending pending = batch.get(i);
+			pending.callback.completed(new Comment(pending.time, pending.text));
+		}
+		return end;
+	}
+
+	private void roll() throws IOException {
+		String name = this.current.file.getName();
+		int number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		Segment segment = new Segment(this.segmentFile(number + 1));
+		this.segments.add(segment);
+		this.current = segment;
+		log.info("Comment log rolled over to " + segment.file);
+	}
+
+}
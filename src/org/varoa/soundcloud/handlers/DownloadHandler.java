@@ -4,14 +4,18 @@ import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
-import org.apache.http.HttpResponse;
 import org.apache.http.entity.ContentType;
-import org.apache.http.nio.entity.NFileEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 import org.varoa.soundcloud.SessionExtractor;
+import org.varoa.soundcloud.Throttle;
 
 /**
  * Serves files uploaded. Will use the current session id and expect that the
@@ -24,35 +28,81 @@ import org.varoa.soundcloud.SessionExtractor;
 public class DownloadHandler extends HttpFileHandler {
 
 	private static Logger log = Logger.getLogger(DownloadHandler.class);
-	private File docRoot = null;
-	private String sessionId = null;
+	private static final int MAX_TYPES = 1024;
+	private Storage storage = null;
+	private Throttle throttle = null;
+	private Checksums checksums = null;
+	/** types by file extension, guessing one means going through a table */
+	private final ConcurrentMap<String, ContentType> types = new ConcurrentHashMap<String, ContentType>();
 
-	public DownloadHandler(final File docRoot) {
-		this.docRoot = docRoot;
+	/**
+	 * @param storage
+	 * @param throttle downloads are shaped by
+	 * @param checksums the first of which tags the files
+	 * @param openFiles the files are served from, null to open them per request
+	 */
+	public DownloadHandler(final Storage storage, final Throttle throttle, final Checksums checksums, final OpenFileCache openFiles) {
+		super(openFiles);
+		this.storage = storage;
+		this.throttle = throttle;
+		this.checksums = checksums;
 	}
-	
+
+	/**
+	 * The checksum of the content computed when it was uploaded, so the tag
+	 * stays the same as long as the content does.
+	 */
 	@Override
-	protected void handleServeFile(final File file, final HttpRequest request, final HttpResponse response, final HttpContext context) {
-		super.handleServeFile(file, request, response, context);
-		this.sessionId = SessionExtractor.extractSession(context);
+	protected String getETag(final File file, final long length, final long lastModified) {
+		String[] algorithms = this.checksums.getAlgorithms();
+		Map<String, String> sums = (algorithms.length == 0) ? null : Checksums.load(file);
+		String sum = (sums == null) ? null : sums.get(algorithms[0]);
+		return (sum == null) ? super.getETag(file, length, lastModified) : "\"" + algorithms[0] + "-" + sum + "\"";
 	}
 
+	/**
+	 * Keeps the session within its download rate.
+	 */
 	@Override
-	protected NFileEntity getNFileEntity(final File f) {
-		String mimeType = URLConnection.guessContentTypeFromName(f.getName());
-		return new NFileEntity(f, ContentType.create(mimeType));
+	protected HttpEntity shape(final HttpEntity entity, final HttpContext context) {
+		Throttle.Flow flow = this.throttle.download(SessionExtractor.extractSession(context));
+		return (flow == null) ? entity : new ThrottledEntity(entity, flow);
+	}
+	
+	@Override
+	protected ContentType getContentType(final File f) {
+		String name = f.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+		ContentType type = this.types.get(extension);
+		if (type == null) {
+			String mimeType = URLConnection.guessContentTypeFromName("file." + extension);
+			type = (mimeType == null) ? ContentType.APPLICATION_OCTET_STREAM : ContentType.create(mimeType);
+			// uploads pick their names, keep only the first so many
+			if (this.types.size() < MAX_TYPES) {
+				this.types.putIfAbsent(extension, type);
+			}
+		}
+		return type;
 	}
 
 	@Override
-	protected File getRequestedFile(final HttpRequest request) {
+	protected File getRequestedFile(final HttpRequest request, final HttpContext context) {
 		String target = request.getRequestLine().getUri().replaceAll("/download/", "");
 		try {
-			File sessionStorage = new File(this.docRoot, sessionId);
-			final File file = new File(sessionStorage, URLDecoder.decode(target, "UTF-8"));
+			String name = URLDecoder.decode(target, "UTF-8");
+			// only uploads, not other folders nor the server's dot files beside them
+			if (!name.equals(UploadRequestConsumer.stripPath(name))) {
+				return null;
+			}
+			// per request, handlers are shared by all connections
+			File sessionStorage = this.storage.getSessionFolder(SessionExtractor.extractSession(context));
+			final File file = new File(sessionStorage, name);
 			return file;
 		} catch (UnsupportedEncodingException e) {
 			log.error("Could not decode URL: ", e);
 			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
 		}
 	}
 
@@ -0,0 +1,202 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+/**
+ * Part of a file as the body of a 206 response. Like {@link org.apache.http.nio.entity.NFileEntity}
+ * the data goes from the file channel straight to the socket when the encoder
+ * allows it, only falling back to copying through a buffer when it doesn't
+ * (e.g. chunked).
+ *
+ * Given a file of the {@link OpenFileCache} it sends from the shared channel,
+ * which is handed back rather than closed when done.
+ */
+class FileRangeEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private final File file;
+	private final long offset;
+	private final long length;
+	private final OpenFileCache cache;
+	private OpenFileCache.OpenFile open;
+	private FileChannel channel = null;
+	private ByteBuffer buffer = null;
+	private long position;
+
+	/**
+	 * @param file
+	 * @param contentType
+	 * @param offset first byte to send
+	 * @param length number of bytes to send
+	 */
+	FileRangeEntity(final File file, final ContentType contentType, final long offset, final long length) {
+		this(file, null, null, contentType, offset, length);
+	}
+
+	/**
+	 * @param cache the file is released to
+	 * @param open
+	 * @param contentType
+	 * @param offset first byte to send
+	 * @param length number of bytes to send
+	 */
+	FileRangeEntity(final OpenFileCache cache, final OpenFileCache.OpenFile open, final ContentType contentType, final long offset, final long length) {
+		this(open.getFile(), cache, open, contentType, offset, length);
+	}
+
+	private FileRangeEntity(final File file, final OpenFileCache cache, final OpenFileCache.OpenFile open, final ContentType contentType,
+			final long offset, final long length) {
+		this.file = file;
+		this.cache = cache;
+		this.open = open;
+		this.offset = offset;
+		this.length = length;
+		this.position = offset;
+		if (contentType != null) {
+			this.setContentType(contentType.toString());
+		}
+	}
+
+	@Override
+	public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+		if (this.channel == null) {
+			this.channel = (this.open != null) ? this.open.getChannel() : FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+			this.position = this.offset;
+		}
+		long end = this.offset + this.length;
+		long transferred;
+		if (encoder instanceof FileContentEncoder) {
+			transferred = ((FileContentEncoder) encoder).transfer(this.channel, this.position, end - this.position);
+		} else {
+			if (this.buffer == null) {
+				this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+			if (this.buffer.position() == 0) {
+				this.buffer.limit((int) Math.min(BUFFER_SIZE, end - this.position));
+				if (this.channel.read(this.buffer, this.position) < 0) {
+					throw new IOException("Unexpected end of " + this.file);
+				}
+			}
+			this.buffer.flip();
+			transferred = encoder.write(this.buffer);
+			this.buffer.compact();
+		}
+		if (transferred < 0) {
+			throw new IOException("Unexpected end of " + this.file);
+		}
+		this.position += transferred;
+		if (this.position >= end) {
+			encoder.complete();
+			this.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		FileChannel channel = this.channel;
+		this.channel = null;
+		this.buffer = null;
+		if (this.open != null) {
+			// shared, sent again from a channel of its own if repeated
+			this.cache.release(this.open);
+			this.open = null;
+		} else if (channel != null) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+		channel.position(this.offset);
+		return new BoundedInputStream(Channels.newInputStream(channel), this.length);
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		InputStream instream = this.getContent();
+		try {
+			byte[] tmp = new byte[BUFFER_SIZE];
+			int l;
+			while ((l = instream.read(tmp)) != -1) {
+				outstream.write(tmp, 0, l);
+			}
+			outstream.flush();
+		} finally {
+			instream.close();
+		}
+	}
+
+	/**
+	 * Stops reading after the end of the range.
+	 */
+	private static class BoundedInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining;
+
+		BoundedInputStream(final InputStream in, final long remaining) {
+			this.in = in;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			int b = this.in.read();
+			if (b >= 0) {
+				this.remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			int l = this.in.read(b, off, (int) Math.min(len, this.remaining));
+			if (l > 0) {
+				this.remaining -= l;
+			}
+			return l;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+
+}
@@ -28,8 +28,14 @@ package org.varoa.soundcloud.handlers;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -47,20 +53,41 @@ import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
+import org.varoa.soundcloud.AccessLog;
 
 /**
  * Serves a file, modified from the example so it can be used for any file and 
  * used both in the {@link WelcomeHandler} and {@link DownloadHandler}.
  * 
+ * Files carry an ETag and Last-Modified so clients can revalidate them with
+ * If-None-Match / If-Modified-Since and get a 304 back, and a single
+ * "Range: bytes=" is served as a 206 so players can seek and broken
+ * downloads can resume. Multiple ranges are answered with the whole file.
+ * 
+ * Given an {@link OpenFileCache}, files are served from the channels it
+ * keeps open, with their ETag and type worked out once per file rather
+ * than once per request.
+ * 
  * Based on the example provided with HTTPCore at
  * http://hc.apache.org/httpcomponents-core-ga/httpcore-nio/index.html
  */
 abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 
 	private static Logger log = Logger.getLogger(HttpFileHandler.class);
+	private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	private static final long[] UNSATISFIABLE = new long[0];
+	private final OpenFileCache openFiles;
 
 	public HttpFileHandler() {
+		this(null);
+	}
+
+	/**
+	 * @param openFiles files are served from, null to open them per request
+	 */
+	public HttpFileHandler(final OpenFileCache openFiles) {
 		super();
+		this.openFiles = openFiles;
 	}
 
 	@Override 
@@ -93,11 +120,16 @@ abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 		if (!"GET".equals(method) && !"HEAD".equals(method) && !"POST".equals(method)) {
 			throw new MethodNotSupportedException(method + " method not supported");
 		}
-	    response.addHeader("Expires", "0");
-	    response.addHeader("Cache-Control", "no-store, no-cache, must-revalidate");
-	    response.addHeader("Cache-Control", "post-check=0, pre-check=0");
-	    response.addHeader("Pragma", "no-cache");
-		final File file = this.getRequestedFile(request);
+		// may be kept, but always revalidated through the ETag
+		response.addHeader("Cache-Control", "private, no-cache");
+		final File file = this.getRequestedFile(request, context);
+		if (file != null && this.openFiles != null) {
+			OpenFileCache.OpenFile open = this.openFiles.acquire(file);
+			if (open != null) {
+				this.handleServeOpenFile(open, request, response, context);
+				return;
+			}
+		}
 		if (file == null || !file.canRead() || file.isDirectory()) {
 			this.handleAccessDenied(file, response, context);
 		} else if (!file.exists()) {
@@ -115,10 +147,241 @@ abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 	 * @param context
 	 */
 	protected void handleServeFile(final File file, final HttpRequest request, final HttpResponse response, final HttpContext context) {
+		final long length = file.length();
+		final long lastModified = file.lastModified();
+		this.serve(file, null, length, lastModified, this.getETag(file, length, lastModified), request, response, context);
+	}
+
+	/**
+	 * Serves a file of the {@link OpenFileCache}, giving it back unless a
+	 * body is sent from it, which does once done.
+	 * 
+	 * @param open
+	 * @param request
+	 * @param response
+	 * @param context
+	 */
+	private void handleServeOpenFile(final OpenFileCache.OpenFile open, final HttpRequest request, final HttpResponse response, final HttpContext context) {
+		String etag = open.getETag();
+		if (etag == null) {
+			etag = this.getETag(open.getFile(), open.getLength(), open.getLastModified());
+			open.setETag(etag);
+		}
+		boolean sending = false;
+		try {
+			sending = this.serve(open.getFile(), open, open.getLength(), open.getLastModified(), etag, request, response, context);
+		} finally {
+			if (!sending) {
+				this.openFiles.release(open);
+			}
+		}
+	}
+
+	/**
+	 * @return whether a body is sent from the file
+	 */
+	private boolean serve(final File file, final OpenFileCache.OpenFile open, final long length, final long lastModified, final String etag,
+			final HttpRequest request, final HttpResponse response, final HttpContext context) {
 		NHttpConnection conn = (NHttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
-		response.setStatusCode(HttpStatus.SC_OK);
-		response.setEntity(this.getNFileEntity(file));
-		log.info(conn + ": serving file " + file.getPath());
+		response.addHeader("ETag", etag);
+		response.addHeader("Last-Modified", formatDate(lastModified));
+		response.addHeader("Accept-Ranges", "bytes");
+		if (isNotModified(request, etag, lastModified)) {
+			response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+			AccessLog.getInstance().served(conn, HttpStatus.SC_NOT_MODIFIED, file, 0, 0);
+			return false;
+		}
+		final long[] range = getRange(request, etag, lastModified, length);
+		if (range == null) {
+			response.setStatusCode(HttpStatus.SC_OK);
+			if (open == null) {
+				response.setEntity(this.shape(new NFileEntity(file, this.getContentType(file)), context));
+			} else {
+				response.setEntity(this.shape(new FileRangeEntity(this.openFiles, open, this.getContentType(open), 0, length), context));
+			}
+			AccessLog.getInstance().served(conn, HttpStatus.SC_OK, file, 0, length);
+		} else if (range == UNSATISFIABLE) {
+			response.setStatusCode(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.addHeader("Content-Range", "bytes */" + length);
+			AccessLog.getInstance().served(conn, HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, file, 0, 0);
+			return false;
+		} else {
+			long count = range[1] - range[0] + 1;
+			response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+			response.addHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+			if (open == null) {
+				response.setEntity(this.shape(new FileRangeEntity(file, this.getContentType(file), range[0], count), context));
+			} else {
+				response.setEntity(this.shape(new FileRangeEntity(this.openFiles, open, this.getContentType(open), range[0], count), context));
+			}
+			AccessLog.getInstance().served(conn, HttpStatus.SC_PARTIAL_CONTENT, file, range[0], count);
+		}
+		return true;
+	}
+
+	/**
+	 * The type of a file kept open, worked out the first time.
+	 * 
+	 * @param open
+	 * @return
+	 */
+	private ContentType getContentType(final OpenFileCache.OpenFile open) {
+		ContentType type = open.getContentType();
+		if (type == null) {
+			type = this.getContentType(open.getFile());
+			open.setContentType(type);
+		}
+		return type;
+	}
+
+	/**
+	 * True if the client's copy, as told by If-None-Match or failing that
+	 * If-Modified-Since, is still the current one.
+	 * 
+	 * @param request
+	 * @param etag
+	 * @param lastModified
+	 * @return
+	 */
+	static boolean isNotModified(final HttpRequest request, final String etag, final long lastModified) {
+		Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.getValue().split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		Header ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			long since = parseDate(ifModifiedSince.getValue());
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * The single byte range requested, as first and last position, null to
+	 * send the whole file and {@link #UNSATISFIABLE} if the range falls
+	 * outside of it. An If-Range that doesn't match the file also gets it
+	 * whole.
+	 * 
+	 * @param request
+	 * @param etag
+	 * @param lastModified
+	 * @param length
+	 * @return
+	 */
+	static long[] getRange(final HttpRequest request, final String etag, final long lastModified, final long length) {
+		Header rangeHeader = request.getFirstHeader("Range");
+		if (rangeHeader == null) {
+			return null;
+		}
+		Header ifRange = request.getFirstHeader("If-Range");
+		if (ifRange != null) {
+			String value = ifRange.getValue().trim();
+			if (value.startsWith("\"")) {
+				if (!value.equals(etag)) {
+					return null;
+				}
+			} else if (parseDate(value) / 1000 != lastModified / 1000) {
+				return null;
+			}
+		}
+		String value = rangeHeader.getValue().trim();
+		if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+			return null;
+		}
+		int dash = value.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		String first = value.substring(6, dash).trim();
+		String last = value.substring(dash + 1).trim();
+		long start;
+		long end;
+		try {
+			if (first.length() == 0) {
+				// suffix range, the last n bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) {
+					return UNSATISFIABLE;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = (last.length() == 0) ? Long.MAX_VALUE : Long.parseLong(last);
+				if (end < start) {
+					// syntactically invalid, ignored
+					return null;
+				}
+				end = Math.min(end, length - 1);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (start >= length) {
+			return UNSATISFIABLE;
+		}
+		return new long[] { start, end };
+	}
+
+	/**
+	 * Hook to tag the file with something better than
+	 * {@link #getETag(long, long)}.
+	 * 
+	 * @param file
+	 * @param length
+	 * @param lastModified
+	 * @return
+	 */
+	protected String getETag(final File file, final long length, final long lastModified) {
+		return getETag(length, lastModified);
+	}
+
+	/**
+	 * Changes whenever the file is rewritten or grows.
+	 * 
+	 * @param length
+	 * @param lastModified
+	 * @return
+	 */
+	static String getETag(final long length, final long lastModified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	static String formatDate(final long time) {
+		return newDateFormat().format(new Date(time));
+	}
+
+	/**
+	 * @param value
+	 * @return ms since the epoch, -1 if not a valid HTTP date
+	 */
+	static long parseDate(final String value) {
+		try {
+			return newDateFormat().parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * SimpleDateFormat isn't thread safe and handlers run on all the I/O
+	 * dispatchers, so a new one each time.
+	 * 
+	 * @return
+	 */
+	private static SimpleDateFormat newDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
 	}
 
 	/**
@@ -132,7 +395,11 @@ abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 		response.setStatusCode(HttpStatus.SC_FORBIDDEN);
 		NStringEntity entity = new NStringEntity("<html><body><h1>Access denied</h1></body></html>", ContentType.create("text/html", "UTF-8"));
 		response.setEntity(entity);
-		log.info("Cannot read file " + file.getName());
+		NHttpConnection conn = (NHttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		AccessLog.getInstance().served(conn, HttpStatus.SC_FORBIDDEN, file, 0, 0);
+		if (log.isDebugEnabled()) {
+			log.debug("Cannot read file " + ((file == null) ? "" : file.getName()));
+		}
 	}
 
 	/**
@@ -147,7 +414,22 @@ abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 		NStringEntity entity = new NStringEntity("<html><body><h1>File" + file.getPath() + " not found</h1></body></html>", ContentType.create("text/html",
 				"UTF-8"));
 		response.setEntity(entity);
-		log.info("File " + file.getName() + " not found");
+		NHttpConnection conn = (NHttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		AccessLog.getInstance().served(conn, HttpStatus.SC_NOT_FOUND, file, 0, 0);
+		if (log.isDebugEnabled()) {
+			log.debug("File " + file.getName() + " not found");
+		}
+	}
+
+	/**
+	 * Hook to wrap the body of the file sent, as is by default.
+	 * 
+	 * @param entity
+	 * @param context
+	 * @return
+	 */
+	protected HttpEntity shape(final HttpEntity entity, final HttpContext context) {
+		return entity;
 	}
 
 	/**
@@ -155,16 +437,17 @@ abstract class HttpFileHandler implements HttpAsyncRequestHandler<HttpRequest> {
 	 * take care to ensure that we do have rights to access etc.
 	 * 
 	 * @param request
+	 * @param context
 	 * @return
 	 */
-	abstract protected File getRequestedFile(final HttpRequest request);
+	abstract protected File getRequestedFile(final HttpRequest request, final HttpContext context);
 
 	/**
-	 * Set the file and the type if known in the implementing handler.
+	 * The type of the file if known in the implementing handler.
 	 * 
 	 * @param f
 	 * @return
 	 */
-	abstract protected NFileEntity getNFileEntity(final File f);
+	abstract protected ContentType getContentType(final File f);
 
 }
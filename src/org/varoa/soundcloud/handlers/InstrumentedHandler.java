@@ -0,0 +1,224 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.varoa.soundcloud.Metrics;
+import org.varoa.soundcloud.RequestRejectedException;
+
+/**
+ * Wraps a handler to record in the {@link Metrics} how long its requests
+ * take, from the request head arriving to the last byte of the response
+ * going out, with what status, and how many bytes went each way on the
+ * connection meanwhile.
+ *
+ * The response is followed by wrapping whatever producer the handler
+ * submits, so handlers answering later from other threads are timed
+ * correctly too.
+ */
+public class InstrumentedHandler<T> implements HttpAsyncRequestHandler<T> {
+
+	private static final String START_ATTR = "metrics.start";
+
+	private final HttpAsyncRequestHandler<T> handler;
+	private final Metrics.HandlerMetrics metrics;
+
+	/**
+	 * @param name to record the requests under
+	 * @param handler
+	 * @param metrics
+	 */
+	public InstrumentedHandler(final String name, final HttpAsyncRequestHandler<T> handler, final Metrics metrics) {
+		this.handler = handler;
+		this.metrics = metrics.getHandler(name);
+	}
+
+	@Override
+	public HttpAsyncRequestConsumer<T> processRequest(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+		Start start = new Start(context, this.metrics);
+		try {
+			HttpAsyncRequestConsumer<T> consumer = this.handler.processRequest(request, context);
+			context.setAttribute(START_ATTR, start);
+			return consumer;
+		} catch (RequestRejectedException e) {
+			start.record(this.metrics, e.getStatusCode());
+			throw e;
+		} catch (MethodNotSupportedException e) {
+			start.record(this.metrics, HttpStatus.SC_NOT_IMPLEMENTED);
+			throw e;
+		}
+	}
+
+	@Override
+	public void handle(final T data, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
+		Start start = (Start) context.removeAttribute(START_ATTR);
+		if (start == null) {
+			this.handler.handle(data, httpexchange, context);
+			return;
+		}
+		try {
+			this.handler.handle(data, new Exchange(httpexchange, start), context);
+		} catch (MethodNotSupportedException e) {
+			start.record(this.metrics, HttpStatus.SC_NOT_IMPLEMENTED);
+			throw e;
+		} catch (HttpException e) {
+			start.record(this.metrics, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+			throw e;
+		} catch (IOException e) {
+			start.record(this.metrics, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+			throw e;
+		}
+	}
+
+	/**
+	 * Record a request refused while its body was being read, which the
+	 * handler never gets to answer. Requests of handlers not instrumented
+	 * or already recorded are left alone.
+	 * @param context
+	 * @param status sent
+	 */
+	public static void recordRejected(final HttpContext context, final int status) {
+		Start start = (Start) context.removeAttribute(START_ATTR);
+		if (start != null) {
+			start.record(start.handler, status);
+		}
+	}
+
+	/**
+	 * When the request arrived, and the byte counts of its connection then.
+	 */
+	private static class Start {
+
+		private final Metrics.HandlerMetrics handler;
+		private final long nanos = System.nanoTime();
+		private final HttpConnectionMetrics connMetrics;
+		private final long received;
+		private final long sent;
+		private final AtomicBoolean recorded = new AtomicBoolean(false);
+
+		Start(final HttpContext context, final Metrics.HandlerMetrics handler) {
+			this.handler = handler;
+			HttpConnection conn = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			this.connMetrics = (conn == null) ? null : conn.getMetrics();
+			this.received = (this.connMetrics == null) ? 0 : this.connMetrics.getReceivedBytesCount();
+			this.sent = (this.connMetrics == null) ? 0 : this.connMetrics.getSentBytesCount();
+		}
+
+		/**
+		 * Record the request, only the first time.
+		 * @param metrics
+		 * @param status null if aborted
+		 */
+		void record(final Metrics.HandlerMetrics metrics, final Integer status) {
+			if (!this.recorded.compareAndSet(false, true)) {
+				return;
+			}
+			long received = (this.connMetrics == null) ? 0 : this.connMetrics.getReceivedBytesCount() - this.received;
+			long sent = (this.connMetrics == null) ? 0 : this.connMetrics.getSentBytesCount() - this.sent;
+			metrics.record(status, System.nanoTime() - this.nanos, received, sent);
+		}
+	}
+
+	/**
+	 * Hands out the exchange as is, but wraps the producer submitted.
+	 */
+	private class Exchange implements HttpAsyncExchange {
+
+		private final HttpAsyncExchange httpexchange;
+		private final Start start;
+
+		Exchange(final HttpAsyncExchange httpexchange, final Start start) {
+			this.httpexchange = httpexchange;
+			this.start = start;
+		}
+
+		public HttpRequest getRequest() {
+			return this.httpexchange.getRequest();
+		}
+
+		public HttpResponse getResponse() {
+			return this.httpexchange.getResponse();
+		}
+
+		public void submitResponse() {
+			this.submitResponse(new BasicAsyncResponseProducer(this.getResponse()));
+		}
+
+		public void submitResponse(final HttpAsyncResponseProducer producer) {
+			this.httpexchange.submitResponse(new Producer(producer, this.start));
+		}
+
+		public boolean isCompleted() {
+			return this.httpexchange.isCompleted();
+		}
+
+		public void setCallback(final Cancellable cancellable) {
+			this.httpexchange.setCallback(cancellable);
+		}
+
+		public void setTimeout(final int timeout) {
+			this.httpexchange.setTimeout(timeout);
+		}
+
+		public int getTimeout() {
+			return this.httpexchange.getTimeout();
+		}
+	}
+
+	/**
+	 * Records the request once its response is out, or failed to go out.
+	 */
+	private class Producer implements HttpAsyncResponseProducer {
+
+		private final HttpAsyncResponseProducer producer;
+		private final Start start;
+		private Integer status = null;
+
+		Producer(final HttpAsyncResponseProducer producer, final Start start) {
+			this.producer = producer;
+			this.start = start;
+		}
+
+		public HttpResponse generateResponse() {
+			HttpResponse response = this.producer.generateResponse();
+			this.status = response.getStatusLine().getStatusCode();
+			return response;
+		}
+
+		public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+			this.producer.produceContent(encoder, ioctrl);
+		}
+
+		public void responseCompleted(final HttpContext context) {
+			this.producer.responseCompleted(context);
+			this.start.record(InstrumentedHandler.this.metrics, this.status);
+		}
+
+		public void failed(final Exception ex) {
+			this.producer.failed(ex);
+			this.start.record(InstrumentedHandler.this.metrics, null);
+		}
+
+		public void close() throws IOException {
+			this.producer.close();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.protocol.HttpContext;
+import org.varoa.soundcloud.Metrics;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text format, for scraping.
+ */
+public class MetricsHandler implements HttpAsyncRequestHandler<HttpRequest> {
+
+	private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=UTF-8";
+	private final Metrics metrics;
+
+	public MetricsHandler(final Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public HttpAsyncRequestConsumer<HttpRequest> processRequest(final HttpRequest request, final HttpContext context) {
+		return new BasicAsyncRequestConsumer();
+	}
+
+	@Override
+	public void handle(final HttpRequest request, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
+		StringBuilder sb = new StringBuilder(8 * 1024);
+		this.metrics.write(sb);
+		HttpResponse response = httpexchange.getResponse();
+		NStringEntity entity = new NStringEntity(sb.toString(), ContentType.TEXT_PLAIN);
+		entity.setContentType(PROMETHEUS_TEXT);
+		response.setEntity(entity);
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+	}
+
+}
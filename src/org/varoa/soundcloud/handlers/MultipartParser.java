@@ -0,0 +1,261 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.http.nio.ContentDecoder;
+
+/**
+ * Incremental multipart/form-data parser. Content is pushed into it as it
+ * arrives from the wire and the parts found are reported to a {@link Handler},
+ * so nothing but a fixed size buffer is ever kept in memory regardless of
+ * the size of the body.
+ *
+ * {@link org.apache.commons.fileupload.MultipartStream} does the same job
+ * but wants a blocking {@link java.io.InputStream}, which doesn't play well
+ * with the non-blocking {@link ContentDecoder} we get from HttpCore.
+ */
+class MultipartParser {
+
+	/**
+	 * Receives the parts found in the body.
+	 */
+	interface Handler {
+
+		/**
+		 * A new part begins, the raw header block is given.
+		 * @param headers
+		 * @return true if the content of the part is wanted, false to skip it
+		 * @throws IOException
+		 */
+		boolean startPart(String headers) throws IOException;
+
+		/**
+		 * A chunk of content for the current part. The buffer is reused by
+		 * the parser so it must be consumed before returning.
+		 * @param data
+		 * @throws IOException
+		 */
+		void partContent(ByteBuffer data) throws IOException;
+
+		/**
+		 * The current part is done.
+		 * @throws IOException
+		 */
+		void endPart() throws IOException;
+	}
+
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+	private static final Charset HEADERS_CHARSET = Charset.forName("UTF-8");
+	private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+
+	private enum State { PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE }
+
+	private final Handler handler;
+	private final byte[] delimiter;
+	private final int[] skip = new int[256];
+	private final byte[] buffer;
+	private final ByteBuffer view;
+	private int pos = 0;
+	private int limit = 0;
+	private State state = State.PREAMBLE;
+	private boolean wanted = false;
+
+	/**
+	 * Construct for the given boundary, as found in the Content-Type header.
+	 * @param boundary
+	 * @param bufferSize
+	 * @param handler
+	 */
+	MultipartParser(final byte[] boundary, final int bufferSize, final Handler handler) {
+		this.handler = handler;
+		// delimiter is CRLF--boundary, the very first one may come without
+		// the CRLF so the buffer is seeded with it
+		this.delimiter = new byte[boundary.length + 4];
+		this.delimiter[0] = '\r';
+		this.delimiter[1] = '\n';
+		this.delimiter[2] = '-';
+		this.delimiter[3] = '-';
+		System.arraycopy(boundary, 0, this.delimiter, 4, boundary.length);
+		this.buffer = new byte[Math.max(Math.max(bufferSize, MIN_BUFFER_SIZE), this.delimiter.length * 4)];
+		this.view = ByteBuffer.wrap(this.buffer);
+		this.buffer[this.limit++] = '\r';
+		this.buffer[this.limit++] = '\n';
+		// Boyer-Moore-Horspool shift table for the delimiter
+		final int last = this.delimiter.length - 1;
+		for (int i = 0; i < this.skip.length; i++) {
+			this.skip[i] = this.delimiter.length;
+		}
+		for (int i = 0; i < last; i++) {
+			this.skip[this.delimiter[i] & 0xFF] = last - i;
+		}
+	}
+
+	/**
+	 * Read all the content currently available in the decoder and parse it.
+	 * @param decoder
+	 * @return bytes read from the decoder
+	 * @throws IOException
+	 */
+	long consume(final ContentDecoder decoder) throws IOException {
+		long total = 0;
+		int read;
+		do {
+			read = this.fill(decoder);
+			if (read > 0) {
+				total += read;
+				this.parse();
+			}
+		} while (read > 0);
+		return total;
+	}
+
+	/**
+	 * Read content from the decoder into the free space of the buffer,
+	 * without parsing it yet. Parsing can then be done by another thread
+	 * with {@link #parse()} as long as both don't overlap.
+	 * @param decoder
+	 * @return bytes read
+	 * @throws IOException
+	 */
+	int fill(final ContentDecoder decoder) throws IOException {
+		this.compact();
+		this.view.limit(this.buffer.length);
+		this.view.position(this.limit);
+		int total = 0;
+		int read;
+		do {
+			read = decoder.read(this.view);
+			if (read > 0) {
+				total += read;
+			}
+		} while (read > 0 && this.view.hasRemaining());
+		this.limit += total;
+		return total;
+	}
+
+	/**
+	 * Parse the content remaining in the given buffer.
+	 * @param src
+	 * @throws IOException
+	 */
+	void feed(final ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			this.compact();
+			int n = Math.min(src.remaining(), this.buffer.length - this.limit);
+			src.get(this.buffer, this.limit, n);
+			this.limit += n;
+			this.parse();
+		}
+	}
+
+	/**
+	 * Whether the closing delimiter has been seen.
+	 * @return
+	 */
+	boolean isComplete() {
+		return this.state == State.EPILOGUE;
+	}
+
+	/**
+	 * Parse what has been read into the buffer so far.
+	 * @throws IOException
+	 */
+	void parse() throws IOException {
+		while (true) {
+			switch (this.state) {
+			case PREAMBLE:
+			case BODY:
+				int found = this.indexOfDelimiter(this.pos, this.limit);
+				// keep enough bytes to recognize a delimiter split across reads
+				int end = (found < 0) ? Math.max(this.pos, this.limit - this.delimiter.length + 1) : found;
+				if (this.state == State.BODY && this.wanted && end > this.pos) {
+					this.view.limit(end);
+					this.view.position(this.pos);
+					this.handler.partContent(this.view);
+				}
+				this.pos = end;
+				if (found < 0) {
+					return;
+				}
+				this.pos += this.delimiter.length;
+				if (this.state == State.BODY) {
+					this.handler.endPart();
+				}
+				this.state = State.DELIMITER;
+				break;
+			case DELIMITER:
+				if (this.limit - this.pos < 2) {
+					return;
+				}
+				if (this.buffer[this.pos] == '-' && this.buffer[this.pos + 1] == '-') {
+					this.state = State.EPILOGUE;
+				} else if (this.buffer[this.pos] == '\r' && this.buffer[this.pos + 1] == '\n') {
+					this.state = State.HEADERS;
+				} else {
+					throw new IOException("Malformed multipart delimiter");
+				}
+				break;
+			case HEADERS:
+				// the CRLF ending the delimiter is kept so an empty header block is found too
+				int headersEnd = this.indexOf(HEADERS_END, this.pos, this.limit);
+				if (headersEnd < 0) {
+					if (this.pos == 0 && this.limit == this.buffer.length) {
+						throw new IOException("Multipart headers too large");
+					}
+					return;
+				}
+				String headers = (headersEnd > this.pos) ? new String(this.buffer, this.pos + 2, headersEnd - this.pos - 2, HEADERS_CHARSET) : "";
+				this.pos = headersEnd + HEADERS_END.length;
+				this.wanted = this.handler.startPart(headers);
+				this.state = State.BODY;
+				break;
+			case EPILOGUE:
+				this.pos = this.limit;
+				return;
+			}
+		}
+	}
+
+	private void compact() {
+		if (this.pos > 0) {
+			System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+			this.limit -= this.pos;
+			this.pos = 0;
+		}
+	}
+
+	private int indexOfDelimiter(final int from, final int to) {
+		final byte[] b = this.buffer;
+		final byte[] d = this.delimiter;
+		final int last = d.length - 1;
+		int i = from;
+		while (i + last < to) {
+			int j = last;
+			while (b[i + j] == d[j]) {
+				if (j == 0) {
+					return i;
+				}
+				j--;
+			}
+			i += this.skip[b[i + last] & 0xFF];
+		}
+		return -1;
+	}
+
+	private int indexOf(final byte[] pattern, final int from, final int to) {
+		outer:
+		for (int i = from; i + pattern.length <= to; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (this.buffer[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
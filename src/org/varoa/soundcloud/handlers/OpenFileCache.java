@@ -0,0 +1,234 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the most recently served files open, with what each response needs
+ * to know about them, so a popular track costs no open or stat per request.
+ * Responses send from the shared channel with positional transfers, so any
+ * number of them can go at once.
+ *
+ * An entry is checked against the disk again after the given time, and
+ * dropped straight away when an upload replaces the file. A dropped or
+ * evicted channel is only closed once the last response using it is done.
+ */
+public class OpenFileCache {
+
+	private static Logger log = Logger.getLogger(OpenFileCache.class);
+	private final int maxFiles;
+	private final long revalidateMillis;
+	private final Map<File, OpenFile> files = new LinkedHashMap<File, OpenFile>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<File, OpenFile> eldest) {
+			if (this.size() <= OpenFileCache.this.maxFiles) {
+				return false;
+			}
+			eldest.getValue().drop();
+			return true;
+		}
+	};
+
+	/**
+	 * A file kept open, shared by the responses sending it.
+	 */
+	static class OpenFile {
+
+		private final File file;
+		private final FileChannel channel;
+		private final long length;
+		private final long lastModified;
+		private volatile long checked;
+		private volatile String etag = null;
+		private volatile ContentType contentType = null;
+		/** responses using it, guarded by the cache */
+		private int users = 0;
+		private boolean dropped = false;
+
+		private OpenFile(final File file, final FileChannel channel, final long length, final long lastModified) {
+			this.file = file;
+			this.channel = channel;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.checked = System.currentTimeMillis();
+		}
+
+		File getFile() {
+			return this.file;
+		}
+
+		/**
+		 * Read only with positional reads and transfers, it's shared.
+		 * @return
+		 */
+		FileChannel getChannel() {
+			return this.channel;
+		}
+
+		long getLength() {
+			return this.length;
+		}
+
+		long getLastModified() {
+			return this.lastModified;
+		}
+
+		/**
+		 * @return null until the first response sets it
+		 */
+		String getETag() {
+			return this.etag;
+		}
+
+		void setETag(final String etag) {
+			this.etag = etag;
+		}
+
+		/**
+		 * @return null until the first response sets it
+		 */
+		ContentType getContentType() {
+			return this.contentType;
+		}
+
+		void setContentType(final ContentType contentType) {
+			this.contentType = contentType;
+		}
+
+		/**
+		 * No longer cached, closed once unused. Called holding the cache.
+		 */
+		private void drop() {
+			this.dropped = true;
+			if (this.users == 0) {
+				this.close();
+			}
+		}
+
+		private void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + this.file, e);
+			}
+		}
+	}
+
+	/**
+	 * @param maxFiles kept open at most
+	 * @param revalidateMillis after which an entry is checked against the
+	 * file again
+	 */
+	public OpenFileCache(final int maxFiles, final long revalidateMillis) {
+		this.maxFiles = maxFiles;
+		this.revalidateMillis = revalidateMillis;
+	}
+
+	/**
+	 * The file open, from the cache or opened now, to be given back with
+	 * {@link #release(OpenFile)} when the response is done with it.
+	 * @param file
+	 * @return null if it isn't a regular file that can be read
+	 */
+	OpenFile acquire(final File file) {
+		OpenFile open;
+		synchronized (this.files) {
+			open = this.files.get(file);
+			if (open != null && this.isCurrent(open)) {
+				open.users++;
+				return open;
+			}
+		}
+		if (!file.isFile()) {
+			return null;
+		}
+		OpenFile opened;
+		try {
+			long lastModified = file.lastModified();
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			// the size of what was opened, whatever happens to the path since
+			opened = new OpenFile(file, channel, channel.size(), lastModified);
+		} catch (IOException e) {
+			return null;
+		}
+		synchronized (this.files) {
+			OpenFile previous = this.files.put(file, opened);
+			if (previous != null && previous != opened) {
+				previous.drop();
+			}
+			opened.users++;
+		}
+		return opened;
+	}
+
+	/**
+	 * A response is done with the file.
+	 * @param open
+	 */
+	void release(final OpenFile open) {
+		synchronized (this.files) {
+			if (--open.users == 0 && open.dropped) {
+				open.close();
+			}
+		}
+	}
+
+	/**
+	 * Forget the file, it's being replaced.
+	 * @param file
+	 */
+	void invalidate(final File file) {
+		synchronized (this.files) {
+			OpenFile open = this.files.remove(file);
+			if (open != null) {
+				open.drop();
+			}
+		}
+	}
+
+	/**
+	 * Number of files kept open.
+	 * @return
+	 */
+	public int size() {
+		synchronized (this.files) {
+			return this.files.size();
+		}
+	}
+
+	/**
+	 * Whether the entry still matches the file, looking at the disk at most
+	 * once per revalidation period. Called holding the cache.
+	 * @param open
+	 * @return
+	 */
+	private boolean isCurrent(final OpenFile open) {
+		long now = System.currentTimeMillis();
+		if (now - open.checked < this.revalidateMillis) {
+			return true;
+		}
+		File file = open.file;
+		if (file.lastModified() == open.lastModified && file.length() == open.length) {
+			open.checked = now;
+			return true;
+		}
+		this.files.remove(file);
+		open.drop();
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "OpenFileCache [maxFiles=" + this.maxFiles + ", revalidate=" + this.revalidateMillis + "ms]";
+	}
+
+}
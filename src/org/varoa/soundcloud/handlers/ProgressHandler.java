@@ -1,10 +1,12 @@
 package org.varoa.soundcloud.handlers;
 
 import java.io.IOException;
+import java.util.Collection;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
 import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
@@ -16,21 +18,57 @@ import org.apache.log4j.Logger;
 import org.varoa.soundcloud.SessionExtractor;
 
 /**
- * Informs about the state of the active upload of the current session, if any.
+ * Informs about the state of the active uploads of the current session, if any.
+ *
+ * A plain request is answered straight away. If the client passes the
+ * progress it already has as ?last=X the request is held open until the
+ * progress moves by at least the configured delta or the uploads end, so
+ * clients don't need to poll on a timer.
+ *
+ * With ?files the answer is JSON with the bytes stored of each file too,
+ * e.g. {"progress":42.5,"files":[{"name":"a.wav","stored":1234,"completed":true}]}.
  */
 public class ProgressHandler implements HttpAsyncRequestHandler<HttpRequest> {
 
 	private static Logger log = Logger.getLogger(ProgressHandler.class);
+	private final float delta;
+	private final int maxWait;
+
+	/**
+	 * @param delta change in % needed to answer a waiting request
+	 * @param maxWait ms a request is held at most before answering anyway
+	 */
+	public ProgressHandler(final float delta, final int maxWait) {
+		this.delta = delta;
+		this.maxWait = maxWait;
+	}
 
 	@Override
 	final public void handle(final HttpRequest request, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
 		String sessionId = SessionExtractor.extractSession(context);
-		Float progress = UploadRequestTracker.getInstance().getUploadProgressPercent(sessionId);
-		log.debug("Poll received for session: \"" + sessionId + "\", sending " + progress);
-		HttpResponse response = httpexchange.getResponse();
-		NStringEntity stringEntity = new NStringEntity((progress == null)?"NULL" : progress.toString());
-		response.setEntity(stringEntity);
-		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+		UploadRequestTracker tracker = UploadRequestTracker.getInstance();
+		Float progress = tracker.getUploadProgressPercent(sessionId);
+		String uri = request.getRequestLine().getUri();
+		if (hasParameter(uri, "files")) {
+			submitFiles(httpexchange, progress, tracker.getUploads(sessionId));
+			return;
+		}
+		Float last = getLast(uri);
+		if (log.isDebugEnabled()) {
+			log.debug("Poll received for session: \"" + sessionId + "\", last " + last + ", sending " + progress);
+		}
+		if (last == null || this.maxWait <= 0) {
+			submitProgress(httpexchange, progress);
+			return;
+		}
+		ProgressWatcher watcher = new ProgressWatcher(sessionId, last.floatValue(), this.delta, httpexchange);
+		if (watcher.offer(progress)) {
+			return;
+		}
+		// keep the connection from timing out while waiting
+		httpexchange.setTimeout(this.maxWait + 5000);
+		httpexchange.setCallback(watcher);
+		tracker.addWatcher(watcher, this.maxWait);
 	}
 
 	@Override
@@ -38,4 +76,76 @@ public class ProgressHandler implements HttpAsyncRequestHandler<HttpRequest> {
 		return new BasicAsyncRequestConsumer();
 	}
 
+	/**
+	 * Send the progress, NULL if there are no uploads.
+	 * @param httpexchange
+	 * @param progress
+	 */
+	static void submitProgress(final HttpAsyncExchange httpexchange, final Float progress) {
+		HttpResponse response = httpexchange.getResponse();
+		NStringEntity stringEntity = new NStringEntity((progress == null)?"NULL" : progress.toString(), ContentType.DEFAULT_TEXT);
+		response.setEntity(stringEntity);
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+	}
+
+	/**
+	 * Send the progress and that of each file.
+	 * @param httpexchange
+	 * @param progress
+	 * @param uploads
+	 */
+	private static void submitFiles(final HttpAsyncExchange httpexchange, final Float progress, final Collection<UploadRequest> uploads) {
+		StringBuilder sb = new StringBuilder("{\"progress\":").append(progress).append(",\"files\":[");
+		for (UploadRequest upload : uploads) {
+			if (sb.charAt(sb.length() - 1) != '[') {
+				sb.append(',');
+			}
+			sb.append("{\"name\":\"");
+			CommentHandler.escape(String.valueOf(upload.getFileName()), sb);
+			sb.append("\",\"stored\":").append(upload.getCount());
+			sb.append(",\"completed\":").append(upload.isCompleted()).append('}');
+		}
+		sb.append("]}");
+		HttpResponse response = httpexchange.getResponse();
+		response.setEntity(new NStringEntity(sb.toString(), ContentType.APPLICATION_JSON));
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+	}
+
+	/**
+	 * Whether the query has the given parameter, with or without a value.
+	 * @param uri
+	 * @param name
+	 * @return
+	 */
+	private static boolean hasParameter(final String uri, final String name) {
+		int query = uri.indexOf('?');
+		if (query < 0) {
+			return false;
+		}
+		for (String param : uri.substring(query + 1).split("&")) {
+			if (param.equals(name) || param.startsWith(name + "=")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The value of the "last" query parameter, if any.
+	 * @param uri
+	 * @return
+	 */
+	private static Float getLast(final String uri) {
+		int index = uri.indexOf("last=");
+		if (index < 0 || (uri.charAt(index - 1) != '?' && uri.charAt(index - 1) != '&')) {
+			return null;
+		}
+		int end = uri.indexOf('&', index);
+		try {
+			return Float.valueOf(uri.substring(index + 5, (end < 0) ? uri.length() : end));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
 }
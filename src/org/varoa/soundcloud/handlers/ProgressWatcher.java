@@ -0,0 +1,96 @@
+package org.varoa.soundcloud.handlers;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+
+/**
+ * A progress poll held open until the progress of its session moves far
+ * enough from the value the client already has, or the upload ends.
+ * Registered in the {@link UploadRequestTracker}, which offers it every
+ * change as the uploads of the session store data.
+ */
+class ProgressWatcher implements Cancellable {
+
+	private final String sessionId;
+	private final float last;
+	private final float delta;
+	private final HttpAsyncExchange httpexchange;
+	private final AtomicBoolean done = new AtomicBoolean(false);
+	private volatile Future<?> expiry = null;
+
+	/**
+	 * @param sessionId
+	 * @param last progress the client has seen
+	 * @param delta change needed to send an update
+	 * @param httpexchange
+	 */
+	ProgressWatcher(final String sessionId, final float last, final float delta, final HttpAsyncExchange httpexchange) {
+		this.sessionId = sessionId;
+		this.last = last;
+		this.delta = delta;
+		this.httpexchange = httpexchange;
+	}
+
+	String getSessionId() {
+		return this.sessionId;
+	}
+
+	/**
+	 * Set the task that answers the poll when it has waited for too long.
+	 * @param expiry
+	 */
+	void setExpiry(final Future<?> expiry) {
+		this.expiry = expiry;
+	}
+
+	/**
+	 * Answer the poll if the given progress is worth it. No progress means
+	 * the uploads of the session are over, which is always worth it.
+	 * @param progress
+	 * @return true if the poll has been answered, now or before
+	 */
+	boolean offer(final Float progress) {
+		if (progress != null && Math.abs(progress.floatValue() - this.last) < this.delta) {
+			return this.done.get();
+		}
+		this.respond(progress);
+		return true;
+	}
+
+	/**
+	 * Answer the poll with the given progress, unless already answered.
+	 * @param progress
+	 */
+	void respond(final Float progress) {
+		if (this.done.compareAndSet(false, true)) {
+			Future<?> expiry = this.expiry;
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+			ProgressHandler.submitProgress(this.httpexchange, progress);
+		}
+	}
+
+	/**
+	 * The connection went away before an answer was sent.
+	 */
+	public boolean cancel() {
+		if (this.done.compareAndSet(false, true)) {
+			Future<?> expiry = this.expiry;
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+			UploadRequestTracker.getInstance().removeWatcher(this);
+			return true;
+		}
+		return false;
+	}
+
+	boolean isDone() {
+		return this.done.get();
+	}
+
+}
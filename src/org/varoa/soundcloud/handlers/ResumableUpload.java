@@ -0,0 +1,143 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * An upload sent as numbered chunks of a fixed size, possibly in parallel
+ * and over several connections. Each chunk is written at its offset in the
+ * destination file, created at its final size when the upload starts, and
+ * the chunks received are remembered so a client that lost its connection
+ * only has to send the missing ones.
+ *
+ * The destination file and progress are those of the {@link UploadRequest}
+ * it wraps, which is tracked like any other upload.
+ */
+class ResumableUpload {
+
+	private final String id;
+	private final UploadRequest uploadReq;
+	private final long size;
+	private final int chunkSize;
+	private final int chunks;
+	private final BitSet received;
+
+	/**
+	 * @param id
+	 * @param uploadReq open at its final size
+	 * @param size
+	 * @param chunkSize
+	 */
+	ResumableUpload(final String id, final UploadRequest uploadReq, final long size, final int chunkSize) {
+		this.id = id;
+		this.uploadReq = uploadReq;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+		this.received = new BitSet(this.chunks);
+	}
+
+	String getId() {
+		return this.id;
+	}
+
+	UploadRequest getUploadRequest() {
+		return this.uploadReq;
+	}
+
+	long getSize() {
+		return this.size;
+	}
+
+	int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	int getChunks() {
+		return this.chunks;
+	}
+
+	/**
+	 * Where the chunk starts in the file.
+	 * @param index
+	 * @return
+	 */
+	long getChunkOffset(final int index) {
+		return (long) index * this.chunkSize;
+	}
+
+	/**
+	 * Bytes in the chunk, only the last one can be shorter.
+	 * @param index
+	 * @return
+	 */
+	int getChunkLength(final int index) {
+		return (int) Math.min(this.chunkSize, this.size - this.getChunkOffset(index));
+	}
+
+	/**
+	 * Store part of a chunk.
+	 * @param data
+	 * @param position in the file
+	 * @throws IOException
+	 */
+	void write(final ByteBuffer data, final long position) throws IOException {
+		this.uploadReq.write(data, position);
+	}
+
+	/**
+	 * The whole chunk has been written. A chunk sent again only counts once
+	 * towards the progress.
+	 * @param index
+	 */
+	void received(final int index) {
+		synchronized (this.received) {
+			if (this.received.get(index)) {
+				return;
+			}
+			this.received.set(index);
+		}
+		this.uploadReq.stored(this.getChunkLength(index));
+	}
+
+	/**
+	 * Whether every chunk has been written.
+	 * @return
+	 */
+	boolean isReceived() {
+		synchronized (this.received) {
+			return this.received.cardinality() == this.chunks;
+		}
+	}
+
+	/**
+	 * The chunks received so far as comma separated ranges of indexes,
+	 * e.g. "0-4,7,9-12". Empty if none.
+	 * @return
+	 */
+	String getReceivedRanges() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (this.received) {
+			int start = this.received.nextSetBit(0);
+			while (start >= 0) {
+				int end = this.received.nextClearBit(start) - 1;
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(start);
+				if (end > start) {
+					sb.append('-').append(end);
+				}
+				start = this.received.nextSetBit(end + 1);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ResumableUpload {" + this.id + ", " + this.uploadReq + "}";
+	}
+
+}
@@ -0,0 +1,400 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.varoa.soundcloud.AccessLog;
+import org.varoa.soundcloud.RequestRejectedException;
+import org.varoa.soundcloud.SessionExtractor;
+import org.varoa.soundcloud.SuperUploaderException;
+import org.varoa.soundcloud.Throttle;
+import org.varoa.soundcloud.WorkerPool;
+
+/**
+ * Uploads sent in chunks, so large files over flaky links only need to
+ * resend what was lost:
+ *
+ * <pre>
+ * POST /resumable?name=song.wav&size=N  starts the upload, answers its id
+ *                                       (the same one again for a name and
+ *                                       size already being uploaded)
+ * PUT  /resumable/id/n                  chunk n, X-Chunk-Size bytes long
+ *                                       except the last one
+ * GET  /resumable/id                    chunks received, e.g. "0-4,7"
+ * POST /resumable/id                    finishes the upload, 409 and the
+ *                                       chunks received if some are missing,
+ *                                       400 if an X-Checksum doesn't match
+ * </pre>
+ *
+ * Chunks can be sent in any order and in parallel. Uploads larger than the
+ * limit are refused with a 413 when started, and so are chunks longer than
+ * they should be, before their body is read if they say how long it is. Uploads left without
+ * any chunk for a while are dropped by the {@link UploadRequestTracker}.
+ */
+public class ResumableUploadHandler implements HttpAsyncRequestHandler<HttpRequest> {
+
+	private static Logger log = Logger.getLogger(ResumableUploadHandler.class);
+	private static final String PATH = "/resumable";
+	private static final String CHUNK_ATTR = "resumable.chunk";
+	private Storage storage = null;
+	private WorkerPool workers = null;
+	private Throttle throttle = null;
+	private Checksums checksums = null;
+	private List<UploadStage.Factory> stages = null;
+	private final int chunkSize;
+	private final long maxSize;
+	private final int maxPerSession;
+	private final ConcurrentMap<String, ResumableUpload> uploads = new ConcurrentHashMap<String, ResumableUpload>();
+
+	/**
+	 * @param storage
+	 * @param workers
+	 * @param chunkSize bytes in each chunk
+	 * @param throttle chunks are admitted and shaped by
+	 * @param checksums computed for each upload once complete
+	 * @param stages each upload goes through once complete
+	 * @param maxSize bytes an upload may have, 0 for no limit
+	 * @param maxPerSession uploads a session may have going on, 0 for no limit
+	 * @throws IllegalArgumentException if chunkSize isn't positive
+	 */
+	public ResumableUploadHandler(final Storage storage, final WorkerPool workers, final int chunkSize, final Throttle throttle,
+			final Checksums checksums, final List<UploadStage.Factory> stages, final long maxSize, final int maxPerSession) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Resumable chunk size must be positive, not " + chunkSize);
+		}
+		this.storage = storage;
+		this.workers = workers;
+		this.throttle = throttle;
+		this.checksums = checksums;
+		this.stages = stages;
+		this.chunkSize = chunkSize;
+		this.maxSize = maxSize;
+		this.maxPerSession = maxPerSession;
+	}
+
+	/**
+	 * Chunks are streamed to their place in the file by a {@link ChunkConsumer},
+	 * anything else is small enough to buffer.
+	 */
+	@Override
+	public HttpAsyncRequestConsumer<HttpRequest> processRequest(final HttpRequest request, final HttpContext context) throws HttpException {
+		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+		if (!"PUT".equals(method)) {
+			return new BasicAsyncRequestConsumer();
+		}
+		String[] path = getPath(request);
+		if (path.length != 2) {
+			throw new MethodNotSupportedException(method + " method not supported");
+		}
+		ResumableUpload upload = this.lookup(path[0], context);
+		int index = -1;
+		try {
+			index = Integer.parseInt(path[1]);
+		} catch (NumberFormatException e) {
+			// refused below
+		}
+		if (upload == null || index < 0 || index >= upload.getChunks()) {
+			throw new RequestRejectedException(HttpStatus.SC_NOT_FOUND, "No such upload or chunk");
+		}
+		UploadHandler.checkSize(request, upload.getChunkLength(index));
+		if (this.workers.isSaturated()) {
+			throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress, try again later");
+		}
+		Throttle.Flow flow = this.throttle.upload(SessionExtractor.extractSession(context));
+		if (flow == null) {
+			throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads waiting, try again later");
+		}
+		ChunkConsumer consumer = new ChunkConsumer(upload, index, this.workers, flow);
+		// requests on a connection come one at a time, so the context can carry it to handle()
+		context.setAttribute(CHUNK_ATTR, consumer);
+		return consumer;
+	}
+
+	@Override
+	public void handle(final HttpRequest request, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
+		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+		String[] path = getPath(request);
+		if ("PUT".equals(method)) {
+			final ChunkConsumer consumer = (ChunkConsumer) context.removeAttribute(CHUNK_ATTR);
+			consumer.getExecutor().execute(new Runnable() {
+				public void run() {
+					ResumableUploadHandler.this.respondChunk(consumer, httpexchange);
+				}
+			});
+		} else if ("POST".equals(method) && path.length == 0) {
+			this.start(request, httpexchange, SessionExtractor.extractSession(context));
+		} else if ("GET".equals(method) && path.length == 1) {
+			ResumableUpload upload = this.lookup(path[0], context);
+			if (upload == null) {
+				respond(httpexchange, HttpStatus.SC_NOT_FOUND, "No such upload");
+			} else {
+				HttpResponse response = httpexchange.getResponse();
+				response.addHeader("X-Chunk-Size", Integer.toString(upload.getChunkSize()));
+				response.addHeader("X-Chunks", Integer.toString(upload.getChunks()));
+				respond(httpexchange, HttpStatus.SC_OK, upload.getReceivedRanges());
+			}
+		} else if ("POST".equals(method) && path.length == 1) {
+			final ResumableUpload upload = this.lookup(path[0], context);
+			if (upload == null) {
+				respond(httpexchange, HttpStatus.SC_NOT_FOUND, "No such upload");
+			} else {
+				Header checksum = request.getFirstHeader(Checksums.HEADER);
+				if (checksum != null) {
+					upload.getUploadRequest().setExpectedChecksums(Checksums.parse(checksum.getValue()));
+				}
+				upload.getUploadRequest().getExecutor().execute(new Runnable() {
+					public void run() {
+						ResumableUploadHandler.this.finish(upload, httpexchange);
+					}
+				});
+			}
+		} else {
+			throw new MethodNotSupportedException(method + " method not supported");
+		}
+	}
+
+	/**
+	 * Start an upload, or find the one going on for the same file.
+	 *
+	 * @param request
+	 * @param httpexchange
+	 * @param sessionId
+	 */
+	private void start(final HttpRequest request, final HttpAsyncExchange httpexchange, final String sessionId) {
+		String uri = request.getRequestLine().getUri();
+		String name = getParameter(uri, "name");
+		final String fileName = (name == null) ? null : UploadRequestConsumer.stripPath(name);
+		final long size;
+		try {
+			size = Long.parseLong(getParameter(uri, "size"));
+		} catch (NumberFormatException e) {
+			respond(httpexchange, HttpStatus.SC_BAD_REQUEST, "Missing or invalid size");
+			return;
+		}
+		if (fileName == null || size < 0 || (size + this.chunkSize - 1) / this.chunkSize > Integer.MAX_VALUE) {
+			respond(httpexchange, HttpStatus.SC_BAD_REQUEST, "Missing or invalid name or size");
+			return;
+		}
+		if (this.maxSize > 0 && size > this.maxSize) {
+			respond(httpexchange, HttpStatus.SC_REQUEST_TOO_LONG, "Upload larger than " + this.maxSize + " bytes");
+			return;
+		}
+		int going = 0;
+		for (Iterator<ResumableUpload> it = this.uploads.values().iterator(); it.hasNext();) {
+			ResumableUpload upload = it.next();
+			UploadRequest uploadReq = upload.getUploadRequest();
+			if (uploadReq.getFailure() != null) {
+				// evicted as stale
+				it.remove();
+			} else if (uploadReq.getSessionId().equals(sessionId)) {
+				if (uploadReq.getFileName().equals(fileName) && upload.getSize() == size) {
+					if (log.isDebugEnabled()) {
+						log.debug("Resuming " + upload);
+					}
+					this.respondStarted(httpexchange, HttpStatus.SC_OK, upload);
+					return;
+				}
+				going++;
+			}
+		}
+		// each one holds its file at full size and its chunk map until finished
+		if (this.maxPerSession > 0 && going >= this.maxPerSession) {
+			respond(httpexchange, HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress for this session, finish some first");
+			return;
+		}
+		final UploadRequest uploadReq = new UploadRequest(this.storage);
+		uploadReq.setChecksums(this.checksums);
+		uploadReq.setStages(this.stages);
+		uploadReq.setSessionId(sessionId);
+		uploadReq.setFileName(fileName);
+		uploadReq.setExecutor(this.workers.newSequence());
+		try {
+			this.workers.execute(new Runnable() {
+				public void run() {
+					ResumableUploadHandler.this.create(uploadReq, size, httpexchange);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			respond(httpexchange, HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress, try again later");
+		}
+	}
+
+	/**
+	 * Track the upload and create its file at full size, on a worker.
+	 *
+	 * @param uploadReq
+	 * @param size
+	 * @param httpexchange
+	 */
+	private void create(final UploadRequest uploadReq, final long size, final HttpAsyncExchange httpexchange) {
+		try {
+			UploadRequestTracker.getInstance().addUploadRequest(uploadReq);
+		} catch (SuperUploaderException e) {
+			respond(httpexchange, HttpStatus.SC_CONFLICT, e.getMessage());
+			return;
+		}
+		try {
+			uploadReq.open(size);
+		} catch (Exception e) {
+			log.error("Could not create " + uploadReq, e);
+			uploadReq.abort();
+			UploadRequestTracker.getInstance().removeUploadRequest(uploadReq);
+			respond(httpexchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Could not create file");
+			return;
+		}
+		ResumableUpload upload = new ResumableUpload(UUID.randomUUID().toString(), uploadReq, size, this.chunkSize);
+		this.uploads.put(upload.getId(), upload);
+		if (log.isDebugEnabled()) {
+			log.debug("Started " + upload + ", " + upload.getChunks() + " chunks");
+		}
+		this.respondStarted(httpexchange, HttpStatus.SC_CREATED, upload);
+	}
+
+	/**
+	 * Close the file if every chunk is there, its checksums are computed
+	 * then since chunks come in any order.
+	 *
+	 * @param upload
+	 * @param httpexchange
+	 */
+	private void finish(final ResumableUpload upload, final HttpAsyncExchange httpexchange) {
+		UploadRequest uploadReq = upload.getUploadRequest();
+		if (uploadReq.getFailure() != null || !uploadReq.isOpen()) {
+			this.uploads.remove(upload.getId());
+			respond(httpexchange, HttpStatus.SC_NOT_FOUND, "No such upload");
+			return;
+		}
+		if (!upload.isReceived()) {
+			respond(httpexchange, HttpStatus.SC_CONFLICT, upload.getReceivedRanges());
+			return;
+		}
+		try {
+			uploadReq.complete();
+			AccessLog.getInstance().uploaded(uploadReq.getSessionId(), uploadReq.getFileName(), uploadReq.getCount());
+			if (!uploadReq.getChecksums().isEmpty()) {
+				httpexchange.getResponse().addHeader(Checksums.HEADER, Checksums.format(uploadReq.getChecksums()));
+			}
+			respond(httpexchange, HttpStatus.SC_OK, "OK");
+		} catch (ChecksumMismatchException e) {
+			log.warn("Upload refused: " + e.getMessage());
+			uploadReq.fail(e);
+			respond(httpexchange, HttpStatus.SC_BAD_REQUEST, e.getMessage());
+		} catch (IOException e) {
+			log.error("Error completing " + upload, e);
+			uploadReq.fail(e);
+			uploadReq.abort();
+			respond(httpexchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Could not store file");
+		}
+		this.uploads.remove(upload.getId());
+		UploadRequestTracker.getInstance().removeUploadRequest(uploadReq);
+	}
+
+	private void respondChunk(final ChunkConsumer consumer, final HttpAsyncExchange httpexchange) {
+		Exception failure = consumer.getFailure();
+		if (failure == null) {
+			respond(httpexchange, HttpStatus.SC_OK, "OK");
+		} else if (failure instanceof SuperUploaderException) {
+			respond(httpexchange, HttpStatus.SC_BAD_REQUEST, failure.getMessage());
+		} else {
+			log.error("Error storing chunk " + consumer.getIndex() + " of " + consumer.getUpload(), failure);
+			respond(httpexchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Could not store chunk");
+		}
+	}
+
+	private void respondStarted(final HttpAsyncExchange httpexchange, final int status, final ResumableUpload upload) {
+		HttpResponse response = httpexchange.getResponse();
+		response.addHeader("Location", PATH + "/" + upload.getId());
+		response.addHeader("X-Chunk-Size", Integer.toString(upload.getChunkSize()));
+		response.addHeader("X-Chunks", Integer.toString(upload.getChunks()));
+		respond(httpexchange, status, upload.getId());
+	}
+
+	private static void respond(final HttpAsyncExchange httpexchange, final int status, final String text) {
+		HttpResponse response = httpexchange.getResponse();
+		response.setStatusCode(status);
+		response.setEntity(new NStringEntity(text, ContentType.DEFAULT_TEXT));
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+	}
+
+	/**
+	 * The upload with the given id, if it belongs to the session of the
+	 * request and wasn't dropped.
+	 *
+	 * @param id
+	 * @param context
+	 * @return
+	 */
+	private ResumableUpload lookup(final String id, final HttpContext context) {
+		ResumableUpload upload = this.uploads.get(id);
+		if (upload == null || upload.getUploadRequest().getFailure() != null) {
+			return null;
+		}
+		return upload.getUploadRequest().getSessionId().equals(SessionExtractor.extractSession(context)) ? upload : null;
+	}
+
+	/**
+	 * The segments of the path after {@value #PATH}.
+	 *
+	 * @param request
+	 * @return
+	 */
+	private static String[] getPath(final HttpRequest request) {
+		String uri = request.getRequestLine().getUri();
+		int query = uri.indexOf('?');
+		String path = (query < 0) ? uri : uri.substring(0, query);
+		path = path.substring(Math.min(path.length(), PATH.length()));
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return (path.length() == 0) ? new String[0] : path.split("/");
+	}
+
+	/**
+	 * The decoded value of a query parameter, if present.
+	 *
+	 * @param uri
+	 * @param name
+	 * @return
+	 */
+	private static String getParameter(final String uri, final String name) {
+		int query = uri.indexOf('?');
+		if (query < 0) {
+			return null;
+		}
+		for (String param : uri.substring(query + 1).split("&")) {
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).equals(name)) {
+				try {
+					return URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+}
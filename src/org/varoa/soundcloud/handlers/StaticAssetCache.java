@@ -0,0 +1,498 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the files of the public folder in memory, ready to be sent: the
+ * bytes in direct buffers, along with gzip and deflate versions for text,
+ * a strong ETag per version and the headers that don't change.
+ *
+ * Files are loaded by a worker on first request, which like any other until
+ * the file is loaded gets null from {@link #get(String)} and is served from
+ * disk. Instead of checking the file on every hit, a background thread
+ * watches the folder and drops entries as soon as their file changes, so
+ * the next request loads it again. Files bigger than maxFileSize, or that
+ * don't fit in maxSize anymore, aren't cached: how much each needs is
+ * remembered, and they're not read again until they change or there's
+ * room for them.
+ */
+public class StaticAssetCache {
+
+	private static final Logger log = Logger.getLogger(StaticAssetCache.class);
+	/** Smaller files aren't worth compressing. */
+	private static final int MIN_COMPRESS = 256;
+	private static final Map<String, String> TYPES = new HashMap<String, String>();
+
+	static {
+		TYPES.put("html", "text/html");
+		TYPES.put("htm", "text/html");
+		TYPES.put("css", "text/css");
+		TYPES.put("js", "application/javascript");
+		TYPES.put("json", "application/json");
+		TYPES.put("svg", "image/svg+xml");
+		TYPES.put("txt", "text/plain");
+		TYPES.put("xml", "application/xml");
+		TYPES.put("ico", "image/x-icon");
+		TYPES.put("png", "image/png");
+		TYPES.put("gif", "image/gif");
+		TYPES.put("jpg", "image/jpeg");
+		TYPES.put("jpeg", "image/jpeg");
+	}
+
+	private final Path root;
+	private final long maxSize;
+	private final long maxFileSize;
+	private final Executor loader;
+	private final ConcurrentMap<String, Asset> assets = new ConcurrentHashMap<String, Asset>();
+	/** Bytes needed by the files that didn't fit, Long.MAX_VALUE if they never will */
+	private final ConcurrentMap<String, Long> uncached = new ConcurrentHashMap<String, Long>();
+	/** Files being loaded, so each is loaded once */
+	private final ConcurrentMap<String, Boolean> loading = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong size = new AtomicLong();
+	/** Bumped on every change seen, to notice those happening while a file loads. */
+	private final AtomicLong changes = new AtomicLong();
+	private final Map<WatchKey, Path> watched = new ConcurrentHashMap<WatchKey, Path>();
+	private final WatchService watcher;
+
+	/**
+	 * One encoding of an asset.
+	 */
+	static class Variant {
+
+		final ByteBuffer body;
+		final String encoding;
+		final String etag;
+
+		Variant(final byte[] body, final String encoding, final String etag) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+			buffer.put(body).flip();
+			this.body = buffer.asReadOnlyBuffer();
+			this.encoding = encoding;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * A file as loaded.
+	 */
+	static class Asset {
+
+		final File file;
+		final String contentType;
+		final long lastModified;
+		/** Last-Modified header value */
+		final String lastModifiedDate;
+		final Variant identity;
+		final Variant gzip;
+		final Variant deflate;
+
+		Asset(final File file, final String contentType, final long lastModified, final Variant identity, final Variant gzip, final Variant deflate) {
+			this.file = file;
+			this.contentType = contentType;
+			this.lastModified = lastModified;
+			this.lastModifiedDate = HttpFileHandler.formatDate(lastModified);
+			this.identity = identity;
+			this.gzip = gzip;
+			this.deflate = deflate;
+		}
+
+		/**
+		 * True if there are encoded versions, and so responses vary on
+		 * Accept-Encoding.
+		 * @return
+		 */
+		boolean isEncoded() {
+			return this.gzip != null || this.deflate != null;
+		}
+
+		/**
+		 * The version to send to a client accepting the given encodings,
+		 * gzip preferred.
+		 * @param acceptEncoding header value, may be null
+		 * @return
+		 */
+		Variant select(final String acceptEncoding) {
+			if (acceptEncoding == null || !this.isEncoded()) {
+				return this.identity;
+			}
+			boolean gzip = false;
+			boolean deflate = false;
+			for (String coding : acceptEncoding.split(",")) {
+				String name = coding;
+				int semicolon = coding.indexOf(';');
+				if (semicolon >= 0) {
+					name = coding.substring(0, semicolon);
+					if (coding.substring(semicolon + 1).replace(" ", "").matches("q=0(\\.0*)?")) {
+						continue;
+					}
+				}
+				name = name.trim().toLowerCase(Locale.ENGLISH);
+				if (name.equals("gzip") || name.equals("x-gzip") || name.equals("*")) {
+					gzip = true;
+				} else if (name.equals("deflate")) {
+					deflate = true;
+				}
+			}
+			if (gzip && this.gzip != null) {
+				return this.gzip;
+			}
+			if (deflate && this.deflate != null) {
+				return this.deflate;
+			}
+			return this.identity;
+		}
+
+		long getSize() {
+			return this.identity.body.capacity() + ((this.gzip == null) ? 0 : this.gzip.body.capacity())
+					+ ((this.deflate == null) ? 0 : this.deflate.body.capacity());
+		}
+	}
+
+	/**
+	 * @param root folder served
+	 * @param maxSize bytes kept in memory at most, 0 to disable caching
+	 * @param maxFileSize bytes of the biggest file cached
+	 * @param loader runs the reading and compressing of files off the I/O
+	 * thread
+	 */
+	public StaticAssetCache(final File root, final long maxSize, final long maxFileSize, final Executor loader) {
+		this.root = root.toPath().toAbsolutePath().normalize();
+		this.maxSize = maxSize;
+		this.maxFileSize = maxFileSize;
+		this.loader = loader;
+		WatchService watcher = null;
+		if (maxSize > 0) {
+			try {
+				watcher = this.root.getFileSystem().newWatchService();
+				this.register(watcher, this.root);
+			} catch (IOException e) {
+				log.warn("Cannot watch " + this.root + " for changes, public files won't be cached", e);
+				watcher = null;
+			}
+		}
+		this.watcher = watcher;
+		if (watcher != null) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					watch();
+				}
+			}, "Static assets");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * The file at the given path under the root, or the root itself if the
+	 * path points out of it.
+	 * @param path relative, '/' separated
+	 * @return
+	 */
+	File resolve(final String path) {
+		String relative = path;
+		while (relative.startsWith("/")) {
+			relative = relative.substring(1);
+		}
+		Path resolved = this.root.resolve(relative).normalize();
+		return (resolved.startsWith(this.root) ? resolved : this.root).toFile();
+	}
+
+	/**
+	 * The cached file at the given path, having it loaded if it's not.
+	 * @param path relative, '/' separated
+	 * @return null if it's not cached, yet or at all
+	 */
+	Asset get(final String path) {
+		if (this.watcher == null) {
+			return null;
+		}
+		// keys are normalized paths, so a hit is always the right file
+		Asset asset = this.assets.get(path);
+		if (asset != null) {
+			return asset;
+		}
+		final File file = this.resolve(path);
+		final String key = this.getKey(file.toPath());
+		asset = this.assets.get(key);
+		if (asset != null) {
+			return asset;
+		}
+		Long needed = this.uncached.get(key);
+		if (needed != null && needed.longValue() > this.maxSize - this.size.get()) {
+			return null;
+		}
+		if (this.loading.putIfAbsent(key, Boolean.TRUE) == null) {
+			try {
+				this.loader.execute(new Runnable() {
+					public void run() {
+						try {
+							StaticAssetCache.this.cache(key, file);
+						} finally {
+							StaticAssetCache.this.loading.remove(key);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// busy, the next request tries again
+				this.loading.remove(key);
+			}
+		}
+		// there already if the loader runs tasks in place
+		return this.assets.get(key);
+	}
+
+	/**
+	 * Load the file into the cache if it fits, or remember how much it
+	 * needs if it doesn't.
+	 * @param key
+	 * @param file
+	 */
+	private void cache(final String key, final File file) {
+		long changes = this.changes.get();
+		if (!file.isFile() || !file.canRead()) {
+			return;
+		}
+		long length = file.length();
+		if (length > this.maxFileSize) {
+			this.refuse(key, Long.MAX_VALUE, changes);
+			return;
+		}
+		if (this.size.get() + length > this.maxSize) {
+			this.refuse(key, length, changes);
+			return;
+		}
+		Asset asset;
+		try {
+			asset = this.load(file);
+		} catch (IOException e) {
+			log.warn("Cannot cache " + file, e);
+			return;
+		}
+		long assetSize = asset.getSize();
+		if (this.size.addAndGet(assetSize) > this.maxSize) {
+			this.size.addAndGet(-assetSize);
+			this.refuse(key, assetSize, changes);
+			return;
+		}
+		this.uncached.remove(key);
+		if (this.assets.putIfAbsent(key, asset) != null) {
+			this.size.addAndGet(-assetSize);
+			return;
+		}
+		if (this.changes.get() != changes) {
+			// something changed while loading, may have been this file
+			this.invalidate(key);
+		}
+	}
+
+	/**
+	 * Remember a file doesn't fit, unless something changed since it was
+	 * looked at.
+	 * @param key
+	 * @param needed bytes
+	 * @param changes count when it was looked at
+	 */
+	private void refuse(final String key, final long needed, final long changes) {
+		this.uncached.put(key, Long.valueOf(needed));
+		if (this.changes.get() != changes) {
+			this.uncached.remove(key);
+		}
+	}
+
+	/**
+	 * Bytes held.
+	 * @return
+	 */
+	public long getSize() {
+		return this.size.get();
+	}
+
+	/**
+	 * Read a file and prepare its encoded versions.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private Asset load(final File file) throws IOException {
+		long lastModified = file.lastModified();
+		byte[] body = Files.readAllBytes(file.toPath());
+		String contentType = getContentType(file.getName());
+		String hash = hash(body);
+		Variant identity = new Variant(body, null, "\"" + hash + "\"");
+		Variant gzip = null;
+		Variant deflate = null;
+		if (body.length >= MIN_COMPRESS && isCompressible(contentType)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(out) {
+				{
+					this.def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			gzipOut.write(body);
+			gzipOut.close();
+			if (out.size() < body.length * 9 / 10) {
+				gzip = new Variant(out.toByteArray(), "gzip", "\"" + hash + "-gz\"");
+			}
+			out.reset();
+			DeflaterOutputStream deflateOut = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+			deflateOut.write(body);
+			deflateOut.close();
+			if (out.size() < body.length * 9 / 10) {
+				deflate = new Variant(out.toByteArray(), "deflate", "\"" + hash + "-df\"");
+			}
+		}
+		log.info("Cached " + file + ", " + body.length + " bytes" + ((gzip == null) ? "" : ", " + gzip.body.capacity() + " gzipped"));
+		return new Asset(file, contentType, lastModified, identity, gzip, deflate);
+	}
+
+	/**
+	 * Drop the entry at the path and everything under it.
+	 * @param path
+	 */
+	private void invalidate(final String path) {
+		for (Iterator<Map.Entry<String, Asset>> it = this.assets.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Asset> entry = it.next();
+			if (isUnder(entry.getKey(), path)) {
+				if (this.assets.remove(entry.getKey(), entry.getValue())) {
+					this.size.addAndGet(-entry.getValue().getSize());
+					log.debug("Dropped " + entry.getKey() + " from cache");
+				}
+			}
+		}
+		for (Iterator<String> it = this.uncached.keySet().iterator(); it.hasNext();) {
+			if (isUnder(it.next(), path)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static boolean isUnder(final String key, final String path) {
+		return key.equals(path) || key.startsWith(path + "/") || path.length() == 0;
+	}
+
+	/**
+	 * Invalidates entries as the watch service reports changes in the folder.
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = this.watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			Path dir = this.watched.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				this.changes.incrementAndGet();
+				if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// lost track, start over
+					this.invalidate("");
+					continue;
+				}
+				Path changed = dir.resolve((Path) event.context());
+				this.invalidate(this.getKey(changed));
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+					try {
+						this.register(this.watcher, changed);
+					} catch (IOException e) {
+						log.warn("Cannot watch " + changed + " for changes", e);
+					}
+				}
+			}
+			if (!key.reset()) {
+				this.watched.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Watch the folder and all the ones under it.
+	 * @param watcher
+	 * @param dir
+	 * @throws IOException
+	 */
+	private void register(final WatchService watcher, final Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path d, final BasicFileAttributes attrs) throws IOException {
+				WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				StaticAssetCache.this.watched.put(key, d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * The cache key of a file, its path relative to the root with '/'.
+	 * @param path
+	 * @return
+	 */
+	private String getKey(final Path path) {
+		return this.root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @param name of the file
+	 * @return MIME type by extension, application/octet-stream if unknown
+	 */
+	static String getContentType(final String name) {
+		int dot = name.lastIndexOf('.');
+		String type = (dot < 0) ? null : TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+		if (type == null) {
+			type = URLConnection.guessContentTypeFromName(name);
+		}
+		return (type == null) ? "application/octet-stream" : type;
+	}
+
+	private static boolean isCompressible(final String contentType) {
+		return contentType.startsWith("text/") || contentType.endsWith("javascript") || contentType.endsWith("json")
+				|| contentType.endsWith("xml");
+	}
+
+	private static String hash(final byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+			StringBuilder sb = new StringBuilder(32);
+			for (int i = 0; i < 16; i++) {
+				sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.varoa.soundcloud.AccessLog;
+
+/**
+ * Serves the files of the public folder from the {@link StaticAssetCache},
+ * gzipped or deflated when the client takes it. Range requests, and files
+ * the cache doesn't hold, are served from disk like any other file.
+ */
+public class StaticHandler extends HttpFileHandler {
+
+	private static Logger log = Logger.getLogger(StaticHandler.class);
+	private final StaticAssetCache cache;
+	private final String prefix;
+	private final String cacheControl;
+
+	/**
+	 * @param cache of the public folder
+	 * @param prefix of the request paths, stripped to get the file path
+	 * @param maxAge seconds clients may use their copy without asking, 0 to
+	 * always revalidate
+	 */
+	public StaticHandler(final StaticAssetCache cache, final String prefix, final int maxAge) {
+		this.cache = cache;
+		this.prefix = prefix;
+		this.cacheControl = (maxAge > 0) ? "public, max-age=" + maxAge : "no-cache";
+	}
+
+	@Override
+	public void handle(final HttpRequest request, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
+		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+		StaticAssetCache.Asset asset = null;
+		if (("GET".equals(method) || "HEAD".equals(method)) && request.getFirstHeader("Range") == null) {
+			String path = this.getRequestedPath(request);
+			asset = (path == null) ? null : this.cache.get(path);
+		}
+		if (asset == null) {
+			super.handle(request, httpexchange, context);
+			return;
+		}
+		HttpResponse response = httpexchange.getResponse();
+		Header acceptEncoding = request.getFirstHeader("Accept-Encoding");
+		StaticAssetCache.Variant variant = asset.select((acceptEncoding == null) ? null : acceptEncoding.getValue());
+		response.addHeader("Cache-Control", this.cacheControl);
+		response.addHeader("ETag", variant.etag);
+		response.addHeader("Last-Modified", asset.lastModifiedDate);
+		response.addHeader("Accept-Ranges", "bytes");
+		if (asset.isEncoded()) {
+			response.addHeader("Vary", "Accept-Encoding");
+		}
+		NHttpConnection conn = (NHttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		if (isNotModified(request, variant.etag, asset.lastModified)) {
+			response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+			AccessLog.getInstance().served(conn, HttpStatus.SC_NOT_MODIFIED, asset.file, 0, 0);
+		} else {
+			response.setStatusCode(HttpStatus.SC_OK);
+			response.setEntity(new BufferEntity(variant.body, asset.contentType, variant.encoding));
+			AccessLog.getInstance().served(conn, HttpStatus.SC_OK, asset.file, 0, variant.body.remaining());
+		}
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+	}
+
+	/**
+	 * The path of the requested file within the public folder.
+	 *
+	 * @param request
+	 * @return null if it can't be decoded
+	 */
+	protected String getRequestedPath(final HttpRequest request) {
+		String uri = request.getRequestLine().getUri();
+		int query = uri.indexOf('?');
+		if (query >= 0) {
+			uri = uri.substring(0, query);
+		}
+		if (uri.startsWith(this.prefix)) {
+			uri = uri.substring(this.prefix.length());
+		}
+		try {
+			return URLDecoder.decode(uri, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			log.error("Could not decode URL: ", e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	protected File getRequestedFile(final HttpRequest request, final HttpContext context) {
+		String path = this.getRequestedPath(request);
+		return this.cache.resolve((path == null) ? "" : path);
+	}
+
+	@Override
+	protected ContentType getContentType(final File f) {
+		return ContentType.create(StaticAssetCache.getContentType(f.getName()));
+	}
+
+}
@@ -0,0 +1,300 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Where the folder of each session goes. Sessions can be spread over several
+ * roots, e.g. one per disk, and within a root they are fanned out in
+ * levels of folders named after the hash of the session id, so no folder
+ * holds more than 256 entries besides the sessions themselves:
+ *
+ * <pre>
+ * root/3f/a0/sessionId
+ * </pre>
+ *
+ * A new session is placed on a root by the {@link Placement} policy and
+ * stays there. Uploads, downloads and anything else that looks for the files
+ * of a session all go through {@link #getSessionFolder(String)}.
+ *
+ * Hard links don't cross file systems, so with dedup each root keeps its
+ * own {@link BlobStore}.
+ */
+public class Storage {
+
+	private static Logger log = Logger.getLogger(Storage.class);
+	/** sessions whose root is remembered */
+	private static final int KNOWN_SESSIONS = 64 * 1024;
+
+	/**
+	 * How new sessions are spread over the roots.
+	 */
+	public enum Placement {
+		/** by the hash of the session id, no need to look for it later */
+		HASH,
+		/** each one on the next root */
+		ROUND_ROBIN,
+		/** on the root with the most usable space */
+		LEAST_USED;
+
+		/**
+		 * @param name as in the configuration, e.g. round-robin
+		 * @return
+		 * @throws IllegalArgumentException if unknown
+		 */
+		public static Placement parse(final String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+		}
+	}
+
+	private final File[] roots;
+	private final int fanOut;
+	private final Placement placement;
+	private final BlobStore[] blobStores;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean sync = false;
+	private volatile OpenFileCache openFiles = null;
+	private ScheduledThreadPoolExecutor sweeper = null;
+	private final Map<String, Integer> known = new LinkedHashMap<String, Integer>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+			return this.size() > KNOWN_SESSIONS;
+		}
+	};
+
+	/**
+	 * @param roots created if missing
+	 * @param fanOut levels of hashed folders above the sessions, 0 to 3
+	 * @param placement
+	 * @param dedup whether to keep a {@link BlobStore} in .blobs of each root
+	 * @throws IOException if a root can't be created
+	 */
+	public Storage(final File[] roots, final int fanOut, final Placement placement, final boolean dedup) throws IOException {
+		if (roots.length == 0 || fanOut < 0 || fanOut > 3) {
+			throw new IllegalArgumentException("Need at least one root and a fan out of 0 to 3");
+		}
+		this.roots = roots.clone();
+		this.fanOut = fanOut;
+		this.placement = (roots.length == 1) ? Placement.HASH : placement;
+		this.blobStores = new BlobStore[roots.length];
+		for (int i = 0; i < roots.length; i++) {
+			if (!roots[i].isDirectory() && !roots[i].mkdirs()) {
+				throw new IOException("Cannot create storage folder " + roots[i]);
+			}
+			if (dedup) {
+				this.blobStores[i] = new BlobStore(new File(roots[i], ".blobs"));
+			}
+		}
+		log.info("Storage: " + this);
+	}
+
+	/**
+	 * Replace the blob store of a single root, to keep blobs elsewhere on
+	 * the same file system. Ignored with several roots, each keeps its own.
+	 * @param blobStore null not to deduplicate
+	 */
+	public void setBlobStore(final BlobStore blobStore) {
+		if (this.roots.length != 1) {
+			log.warn("Several storage roots, ignoring " + blobStore);
+			return;
+		}
+		this.blobStores[0] = blobStore;
+	}
+
+	/**
+	 * Periodically remove the blobs no session file links to any more,
+	 * starting right away for those left by a previous run. Uploads that
+	 * replace a file reclaim its blob themselves, this catches the rest.
+	 * @param periodMillis 0 not to sweep
+	 */
+	public synchronized void startSweeping(final long periodMillis) {
+		if (this.sweeper != null || periodMillis <= 0) {
+			return;
+		}
+		this.sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Blob sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (BlobStore blobStore : Storage.this.blobStores) {
+					if (blobStore != null) {
+						int count = blobStore.sweep();
+						if (count > 0) {
+							log.info("Reclaimed " + count + " blobs from " + blobStore);
+						}
+					}
+				}
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Whether uploads are forced to disk before they count as stored, at
+	 * the cost of waiting for the disk on each one.
+	 * @param sync
+	 */
+	public void setSync(final boolean sync) {
+		this.sync = sync;
+	}
+
+	boolean isSync() {
+		return this.sync;
+	}
+
+	/**
+	 * Set the cache of files kept open for downloads, so those replaced by
+	 * uploads are dropped from it.
+	 * @param openFiles
+	 */
+	public void setOpenFiles(final OpenFileCache openFiles) {
+		this.openFiles = openFiles;
+	}
+
+	/**
+	 * A file of a session is being replaced, or has changed.
+	 * @param file
+	 */
+	void changed(final File file) {
+		OpenFileCache openFiles = this.openFiles;
+		if (openFiles != null) {
+			openFiles.invalidate(file);
+		}
+	}
+
+	/**
+	 * The first root, for whatever isn't kept per session.
+	 * @return
+	 */
+	public File getPrimaryRoot() {
+		return this.roots[0];
+	}
+
+	/**
+	 * The folder of the session, where it is or would be created.
+	 * @param sessionId
+	 * @return
+	 */
+	File getSessionFolder(final String sessionId) {
+		return this.folder(this.locate(sessionId, false), sessionId);
+	}
+
+	/**
+	 * The folder of the session, placed and created if new.
+	 * @param sessionId
+	 * @return
+	 * @throws IOException if it can't be created
+	 */
+	File createSessionFolder(final String sessionId) throws IOException {
+		File folder = this.folder(this.locate(sessionId, true), sessionId);
+		if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException("Can't create session folder " + folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * The blob store on the same file system as the folder.
+	 * @param sessionFolder
+	 * @return null if not deduplicating
+	 */
+	BlobStore getBlobStore(final File sessionFolder) {
+		File root = sessionFolder;
+		for (int i = 0; i <= this.fanOut; i++) {
+			root = root.getParentFile();
+		}
+		for (int i = 0; i < this.roots.length; i++) {
+			if (this.roots[i].equals(root)) {
+				return this.blobStores[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The root holding the session, placing it if it isn't anywhere yet.
+	 * @param sessionId
+	 * @param place whether to pick a root for a new session; if not the one
+	 * hashing gives is returned
+	 * @return
+	 */
+	private int locate(final String sessionId, final boolean place) {
+		int hash = hash(sessionId);
+		if (this.placement == Placement.HASH) {
+			return (hash >>> 24) % this.roots.length;
+		}
+		synchronized (this.known) {
+			Integer root = this.known.get(sessionId);
+			if (root != null) {
+				return root;
+			}
+			for (int i = 0; i < this.roots.length; i++) {
+				if (this.folder(i, sessionId).isDirectory()) {
+					this.known.put(sessionId, i);
+					return i;
+				}
+			}
+			if (!place) {
+				return (hash >>> 24) % this.roots.length;
+			}
+			int chosen = (this.placement == Placement.ROUND_ROBIN) ? (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.roots.length : this.leastUsed();
+			// placed for good, the folder is created right after
+			this.known.put(sessionId, chosen);
+			return chosen;
+		}
+	}
+
+	private int leastUsed() {
+		int best = 0;
+		long most = -1;
+		for (int i = 0; i < this.roots.length; i++) {
+			long usable = this.roots[i].getUsableSpace();
+			if (usable > most) {
+				most = usable;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private File folder(final int root, final String sessionId) {
+		File folder = this.roots[root];
+		int hash = hash(sessionId);
+		for (int level = 0; level < this.fanOut; level++) {
+			folder = new File(folder, String.format("%02x", (hash >>> (8 * level)) & 0xFF));
+		}
+		return new File(folder, sessionId);
+	}
+
+	/**
+	 * Spreads session ids evenly, whatever they look like.
+	 * @param sessionId
+	 * @return
+	 */
+	private static int hash(final String sessionId) {
+		int h = sessionId.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public String toString() {
+		return "[roots=" + Arrays.toString(this.roots) + ", fanOut=" + this.fanOut + ", placement=" + this.placement
+				+ ", dedup=" + (this.blobStores[0] != null) + "]";
+	}
+
+}
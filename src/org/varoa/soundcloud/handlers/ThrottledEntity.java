@@ -0,0 +1,114 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.varoa.soundcloud.Throttle;
+
+/**
+ * Sends a body no faster than its {@link Throttle.Flow} allows. The bytes
+ * the wrapped producer writes are counted on the way to the encoder, and
+ * output is suspended for as long as the flow is over its rate, so zero
+ * copy transfers keep working. Each call writes at most {@link #CHUNK}
+ * bytes, otherwise a fast client takes the whole file in one go.
+ */
+class ThrottledEntity extends HttpEntityWrapper implements HttpAsyncContentProducer {
+
+	/** bytes written at most per call */
+	static final int CHUNK = 64 * 1024;
+
+	private final HttpAsyncContentProducer producer;
+	private final Throttle.Flow flow;
+	private CountingEncoder counter = null;
+
+	/**
+	 * @param entity a {@link HttpAsyncContentProducer}
+	 * @param flow
+	 */
+	ThrottledEntity(final HttpEntity entity, final Throttle.Flow flow) {
+		super(entity);
+		this.producer = (HttpAsyncContentProducer) entity;
+		this.flow = flow;
+	}
+
+	public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+		if (this.counter == null || this.counter.encoder != encoder) {
+			this.counter = (encoder instanceof FileContentEncoder) ? new CountingFileEncoder((FileContentEncoder) encoder) : new CountingEncoder(encoder);
+		}
+		this.counter.count = 0;
+		this.producer.produceContent(this.counter, ioctrl);
+		long until = this.flow.take(this.counter.count);
+		if (!encoder.isCompleted()) {
+			this.flow.pauseOutput(ioctrl, until);
+		}
+	}
+
+	public void close() throws IOException {
+		this.counter = null;
+		this.producer.close();
+	}
+
+	/**
+	 * Counts what goes through.
+	 */
+	private static class CountingEncoder implements ContentEncoder {
+
+		final ContentEncoder encoder;
+		long count = 0;
+
+		CountingEncoder(final ContentEncoder encoder) {
+			this.encoder = encoder;
+		}
+
+		public int write(final ByteBuffer src) throws IOException {
+			long left = CHUNK - this.count;
+			if (left <= 0) {
+				return 0;
+			}
+			int written;
+			if (src.remaining() > left) {
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + (int) left);
+				written = this.encoder.write(slice);
+				src.position(slice.position());
+			} else {
+				written = this.encoder.write(src);
+			}
+			this.count += Math.max(0, written);
+			return written;
+		}
+
+		public void complete() throws IOException {
+			this.encoder.complete();
+		}
+
+		public boolean isCompleted() {
+			return this.encoder.isCompleted();
+		}
+	}
+
+	private static class CountingFileEncoder extends CountingEncoder implements FileContentEncoder {
+
+		CountingFileEncoder(final FileContentEncoder encoder) {
+			super(encoder);
+		}
+
+		public long transfer(final FileChannel src, final long position, final long count) throws IOException {
+			long left = CHUNK - this.count;
+			if (left <= 0) {
+				return 0;
+			}
+			long transferred = ((FileContentEncoder) this.encoder).transfer(src, position, Math.min(count, left));
+			this.count += Math.max(0, transferred);
+			return transferred;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The files carried by one upload request. A multipart body can hold any
+ * number of them, each streamed to its own {@link UploadRequest} as its
+ * part is parsed, all in the sequence of storage work of the request.
+ *
+ * Closing a finished file, with its fsync, checksums and stages, can be
+ * handed to other workers so the next part is parsed meanwhile. The
+ * response waits for those with {@link #whenClosed(Runnable)}.
+ */
+class UploadBatch {
+
+	private final String sessionId;
+	private final Executor executor;
+	private final List<UploadRequest> files = new CopyOnWriteArrayList<UploadRequest>();
+	private volatile Exception failure = null;
+	private int closing = 0;
+	private final List<Runnable> whenClosed = new ArrayList<Runnable>();
+
+	/**
+	 * @param sessionId
+	 * @param executor running the storage work of the request, in order
+	 */
+	UploadBatch(final String sessionId, final Executor executor) {
+		this.sessionId = sessionId;
+		this.executor = executor;
+	}
+
+	String getSessionId() {
+		return this.sessionId;
+	}
+
+	/**
+	 * Executor running the storage work of the request, anything given to
+	 * it runs after the data received so far has been parsed and written.
+	 * @return
+	 */
+	Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * A file found in the body.
+	 * @param file
+	 */
+	void add(final UploadRequest file) {
+		this.files.add(file);
+	}
+
+	/**
+	 * The files found so far, in the order of the body.
+	 * @return
+	 */
+	List<UploadRequest> getFiles() {
+		return this.files;
+	}
+
+	/**
+	 * Record an error with the body itself, as opposed to one of its files.
+	 * @param failure
+	 */
+	void fail(final Exception failure) {
+		if (this.failure == null) {
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * The error with the body, if any.
+	 * @return
+	 */
+	Exception getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * Complete a file whose content is all written, on the given executor.
+	 * A failure is recorded on the file.
+	 * @param file
+	 * @param executor the caller's thread is used if it refuses the work
+	 */
+	void close(final UploadRequest file, final Executor executor) {
+		synchronized (this) {
+			this.closing++;
+		}
+		Runnable close = new Runnable() {
+			public void run() {
+				try {
+					file.complete();
+				} catch (IOException e) {
+					file.fail(e);
+				} finally {
+					UploadBatch.this.closed();
+				}
+			}
+		};
+		try {
+			executor.execute(close);
+		} catch (RejectedExecutionException e) {
+			close.run();
+		}
+	}
+
+	private void closed() {
+		List<Runnable> tasks;
+		synchronized (this) {
+			if (--this.closing > 0 || this.whenClosed.isEmpty()) {
+				return;
+			}
+			tasks = new ArrayList<Runnable>(this.whenClosed);
+			this.whenClosed.clear();
+		}
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Run the task once no file is being closed, straight away if none is.
+	 * @param task
+	 */
+	void whenClosed(final Runnable task) {
+		synchronized (this) {
+			if (this.closing > 0) {
+				this.whenClosed.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+}
@@ -1,11 +1,10 @@
 package org.varoa.soundcloud.handlers;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
-import org.apache.commons.fileupload.MultipartStream;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
@@ -15,89 +14,198 @@ import org.apache.http.HttpStatus;
 import org.apache.http.MethodNotSupportedException;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
-import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
 import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
 import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
+import org.varoa.soundcloud.AccessLog;
+import org.varoa.soundcloud.RequestRejectedException;
 import org.varoa.soundcloud.SessionExtractor;
-import org.varoa.soundcloud.SuperUploaderException;
+import org.varoa.soundcloud.Throttle;
+import org.varoa.soundcloud.WorkerPool;
 
 /**
- * Attends upload requests for the current session, store the file and
+ * Attends upload requests for the current session, store the files and
  * ensure that progress is tracked in the {@link UploadRequestTracker} singleton.
  */
-public class UploadHandler implements HttpAsyncRequestHandler<HttpRequest> {
+public class UploadHandler implements HttpAsyncRequestHandler<UploadBatch> {
 
 	private static Logger log = Logger.getLogger(UploadHandler.class);
-	private File docRoot = null;
+	private Storage storage = null;
+	private WorkerPool workers = null;
+	private Throttle throttle = null;
+	private Checksums checksums = null;
+	private List<UploadStage.Factory> stages = null;
+	private boolean parallelClose = false;
+	private long maxSize = 0;
 
-	public UploadHandler(final File docRoot) {
-		this.docRoot = docRoot;
-	}
-
-	@Override 
-	public HttpAsyncRequestConsumer<HttpRequest> processRequest(final HttpRequest request, final HttpContext context) {
-		// Buffer request content in memory for simplicity
-		return new BasicAsyncRequestConsumer();
+	/**
+	 * @param storage
+	 * @param workers
+	 * @param throttle uploads are admitted and shaped by
+	 * @param checksums computed for each upload
+	 * @param stages each upload goes through
+	 * @param parallelClose whether the files of a request are closed on
+	 * other workers while the rest of the body is stored
+	 * @param maxSize bytes a request body may have, 0 for no limit
+	 */
+	public UploadHandler(final Storage storage, final WorkerPool workers, final Throttle throttle, final Checksums checksums,
+			final List<UploadStage.Factory> stages, final boolean parallelClose, final long maxSize) {
+		this.storage = storage;
+		this.workers = workers;
+		this.throttle = throttle;
+		this.checksums = checksums;
+		this.stages = stages;
+		this.parallelClose = parallelClose;
+		this.maxSize = maxSize;
 	}
 
+	/**
+	 * The body is streamed to storage by an {@link UploadRequestConsumer} as
+	 * it arrives, so memory use doesn't depend on the size of the upload.
+	 * Refused with a 503 if the workers doing the storage are saturated or
+	 * too many uploads are waiting for their turn already, and with a 413
+	 * if the body is declared larger than allowed. That happens before a
+	 * client sending Expect: 100-continue is told to go on, and a chunked
+	 * body going over the limit is refused as soon as it does.
+	 */
 	@Override 
-	final public void handle(final HttpRequest request, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
-		
-		HttpResponse response = httpexchange.getResponse();
+	public HttpAsyncRequestConsumer<UploadBatch> processRequest(final HttpRequest request, final HttpContext context) throws HttpException {
 		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
 		if (!"POST".equals(method)) {
 			throw new MethodNotSupportedException(method + " method not supported");
 		}
-		
-		HttpEntity entity = null;
-		if (request instanceof HttpEntityEnclosingRequest) {
-			// awful documentation from Apache, found on: 
-			// http://www.oreillynet.com/onjava/blog/2006/06/parsing_formdata_multiparts.html
-			entity = ((HttpEntityEnclosingRequest) request).getEntity();
-			String contentType = entity.getContentType().toString();
-			int boundaryIndex = contentType.indexOf("boundary=");
-			byte[] boundary = (contentType.substring(boundaryIndex + 9)).getBytes();
-			// prepare multipart stream
-			ByteArrayInputStream input = new ByteArrayInputStream(EntityUtils.toByteArray(entity));
-			// had no time to investigate this one, the documentation for
-			// HttpCore and FileUpload is dismal.
-			@SuppressWarnings("deprecation")
-			MultipartStream multipartStream = new MultipartStream(input, boundary);
-			multipartStream.skipPreamble();
-			// extract data
-			String headers = multipartStream.readHeaders();
-			String fileName = headers.substring(headers.indexOf("filename=") + 10, headers.lastIndexOf("\""));
-			String sessionId = SessionExtractor.extractSession(context);
-			// create upload request
-			UploadRequest uploadReq = new UploadRequest(this.docRoot);
-			uploadReq.setApproxSize(input.available());
-			uploadReq.setSessionId(sessionId);
-			uploadReq.setFileName(fileName);
-			uploadReq.setMultipartStream(multipartStream);
-			// process it
-			try {
-				UploadRequestTracker.getInstance().addUploadRequest(uploadReq);
-				uploadReq.process();
-				log.info("Completed " + uploadReq);
-				log.info(uploadReq);
-				NStringEntity stringEntity = new NStringEntity("OK");
-				response.setEntity(stringEntity);
-				httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
-				UploadRequestTracker.getInstance().removeUploadRequest(uploadReq);
-			} catch (SuperUploaderException e) {
-				log.error("Error processing upload request", e);
-				this.handleBadRequest(response);
+		checkSize(request, this.maxSize);
+		if (this.workers.isSaturated()) {
+			throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads in progress, try again later");
+		}
+		String sessionId = SessionExtractor.extractSession(context);
+		Throttle.Flow flow = this.throttle.upload(sessionId);
+		if (flow == null) {
+			throw new RequestRejectedException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many uploads waiting, try again later");
+		}
+		UploadRequest uploadReq = new UploadRequest(this.storage);
+		uploadReq.setChecksums(this.checksums);
+		uploadReq.setStages(this.stages);
+		uploadReq.setSessionId(sessionId);
+		return new UploadRequestConsumer(uploadReq, this.workers, flow, this.parallelClose, this.maxSize);
+	}
+
+	/**
+	 * Refuse a body whose Content-Length is over the limit, chunked ones
+	 * are counted as they arrive.
+	 * @param request
+	 * @param maxSize 0 for no limit
+	 * @throws RequestRejectedException with a 413 if it's too large
+	 */
+	static void checkSize(final HttpRequest request, final long maxSize) throws RequestRejectedException {
+		if (maxSize <= 0 || !(request instanceof HttpEntityEnclosingRequest)) {
+			return;
+		}
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		if (entity != null && entity.getContentLength() > maxSize) {
+			throw tooLarge(maxSize);
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 * @return the rejection of a body over the limit
+	 */
+	static RequestRejectedException tooLarge(final long maxSize) {
+		return new RequestRejectedException(HttpStatus.SC_REQUEST_TOO_LONG, "Upload larger than " + maxSize + " bytes");
+	}
+
+	/**
+	 * The response waits for the storage work still pending on the workers,
+	 * and for the files still being closed.
+	 */
+	@Override 
+	final public void handle(final UploadBatch batch, final HttpAsyncExchange httpexchange, final HttpContext context) throws HttpException, IOException {
+		batch.getExecutor().execute(new Runnable() {
+			public void run() {
+				batch.whenClosed(new Runnable() {
+					public void run() {
+						UploadHandler.this.respond(batch, httpexchange);
+					}
+				});
 			}
-			
+		});
+	}
+
+	/**
+	 * Sends the list of files, each with its size and checksums or the
+	 * reason it wasn't stored, e.g.
+	 *
+	 * <pre>
+	 * {"files":[{"name":"a.wav","size":1234,"checksums":{"crc32c":"e3069283"}},
+	 *   {"name":"b.wav","error":"..."}]}
+	 * </pre>
+	 *
+	 * The status is OK if all were stored, 400 if any isn't what the client
+	 * said or 500 otherwise. With a single file its checksums also go in the
+	 * {@value Checksums#HEADER} header. A body that can't be read at all
+	 * gets a plain 500.
+	 * 
+	 * @param batch
+	 * @param httpexchange
+	 */
+	private void respond(final UploadBatch batch, final HttpAsyncExchange httpexchange) {
+		HttpResponse response = httpexchange.getResponse();
+		List<UploadRequest> files = batch.getFiles();
+		if (batch.getFailure() != null || files.isEmpty()) {
+			log.error("Error processing upload request", batch.getFailure());
+			this.handleBadRequest(response);
 		} else {
-			log.error("Non HttpEntityEnclosingRequest (!)");
+			int status = HttpStatus.SC_OK;
+			StringBuilder sb = new StringBuilder("{\"files\":[");
+			for (UploadRequest file : files) {
+				if (sb.charAt(sb.length() - 1) != '[') {
+					sb.append(',');
+				}
+				sb.append("{\"name\":\"");
+				CommentHandler.escape(String.valueOf(file.getFileName()), sb);
+				sb.append('"');
+				Exception failure = file.getFailure();
+				if (failure == null && file.isCompleted()) {
+					AccessLog.getInstance().uploaded(file.getSessionId(), file.getFileName(), file.getCount());
+					sb.append(",\"size\":").append(file.getCount()).append(",\"checksums\":{");
+					for (Map.Entry<String, String> sum : file.getChecksums().entrySet()) {
+						if (sb.charAt(sb.length() - 1) != '{') {
+							sb.append(',');
+						}
+						sb.append('"').append(sum.getKey()).append("\":\"").append(sum.getValue()).append('"');
+					}
+					sb.append('}');
+				} else {
+					if (failure instanceof ChecksumMismatchException) {
+						log.warn("Upload refused: " + failure.getMessage());
+						status = HttpStatus.SC_BAD_REQUEST;
+					} else {
+						log.error("Error processing upload of " + file, failure);
+						if (status == HttpStatus.SC_OK) {
+							status = HttpStatus.SC_INTERNAL_SERVER_ERROR;
+						}
+					}
+					sb.append(",\"error\":\"");
+					CommentHandler.escape(String.valueOf((failure == null) ? "Not stored" : failure.getMessage()), sb);
+					sb.append('"');
+				}
+				sb.append('}');
+			}
+			sb.append("]}");
+			if (files.size() == 1 && !files.get(0).getChecksums().isEmpty()) {
+				response.addHeader(Checksums.HEADER, Checksums.format(files.get(0).getChecksums()));
+			}
+			response.setStatusCode(status);
+			response.setEntity(new NStringEntity(sb.toString(), ContentType.APPLICATION_JSON));
+		}
+		httpexchange.submitResponse(new BasicAsyncResponseProducer(response));
+		for (UploadRequest file : files) {
+			UploadRequestTracker.getInstance().removeUploadRequest(file);
 		}
-
 	}
 	
 	/**
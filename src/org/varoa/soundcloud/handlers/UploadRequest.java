@@ -1,12 +1,21 @@
 package org.varoa.soundcloud.handlers;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
-import org.apache.commons.fileupload.MultipartStream;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.log4j.Logger;
 import org.varoa.soundcloud.SuperUploaderException;
 
 /**
@@ -15,21 +24,52 @@ import org.varoa.soundcloud.SuperUploaderException;
  */
 public class UploadRequest {
 
-	private MultipartStream multipartStream = null;
-	private File docRoot = null;
+	private static Logger log = Logger.getLogger(UploadRequest.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private Storage storage = null;
+	private File file = null;
 	private String sessionId = null;
 	private String fileName = null;
-	private CountingFileOutputStream os = null;
-	private long size = 0;
+	private FileChannel channel = null;
+	private volatile long count = 0;
+	private volatile long size = 0;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile boolean completed = false;
+	private volatile boolean aborted = false;
+	private volatile Exception failure = null;
+	private Executor executor = null;
+	private BlobStore blobStore = null;
+	private Checksums checksums = null;
+	private Map<String, String> expected = Collections.emptyMap();
+	private Checksums.Digest digest = null;
+	private List<UploadStage.Factory> stageFactories = Collections.emptyList();
+	private List<UploadStage> stages = Collections.emptyList();
+	/** whether the content is seen in order as it's written */
+	private boolean seen = false;
+	private Map<String, String> sums = Collections.emptyMap();
 
 	/**
-	 * Construct pointing at the root folder for storage.
-	 * @param docRoot
+	 * Construct pointing at the storage the session folder is in.
+	 * @param storage
 	 */
-	UploadRequest (File docRoot) {
-		this.docRoot = docRoot;
+	UploadRequest (Storage storage) {
+		this.storage = storage;
 	}
 	
+	/**
+	 * Another upload of the same session to the same storage, with the same
+	 * checksums and stages, for the next file of a request.
+	 * @return
+	 */
+	UploadRequest next() {
+		UploadRequest next = new UploadRequest(this.storage);
+		next.setSessionId(this.sessionId);
+		next.setExecutor(this.executor);
+		next.setChecksums(this.checksums);
+		next.setStages(this.stageFactories);
+		return next;
+	}
+
 	/**
 	 * Set the session id associated to this upload.
 	 * @param sessionId
@@ -54,13 +94,45 @@ public class UploadRequest {
 		this.fileName = fileName;
 	}
 
+	/**
+	 * The file name, null until the file part has been found.
+	 * @return
+	 */
+	String getFileName() {
+		return this.fileName;
+	}
+
 	/**
 	 * Approx. expected size of file.
 	 * @param size
 	 */
-	void setApproxSize(int size) {
+	void setApproxSize(long size) {
 		this.size = size;
 	}
+
+	/**
+	 * Approx. expected size of file, 0 if unknown.
+	 * @return
+	 */
+	long getApproxSize() {
+		return this.size;
+	}
+
+	/**
+	 * Bytes stored so far.
+	 * @return
+	 */
+	long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * When data was last stored, in ms since the epoch.
+	 * @return
+	 */
+	long getLastActivity() {
+		return this.lastActivity;
+	}
 	
 	/**
 	 * Confirm that we have all data needed.
@@ -72,19 +144,100 @@ public class UploadRequest {
 	
 
 	/**
-	 * Construct an output stream where data should be posted to.
+	 * Record an error that prevents the upload from completing.
+	 * @param failure
+	 */
+	void fail(Exception failure) {
+		if (this.failure == null) {
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * The error that prevented the upload from completing, if any.
 	 * @return
 	 */
-	void setMultipartStream(MultipartStream multipartStream) {
-		this.multipartStream = multipartStream;
+	Exception getFailure() {
+		return this.failure;
 	}
-	
+
+	/**
+	 * Set the executor that runs the storage work of this upload, in order.
+	 * @param executor
+	 */
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Executor running the storage work of this upload, anything given to it
+	 * runs after the data received so far has been stored.
+	 * @return
+	 */
+	Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * Set the checksums to compute, null for none beyond those needed.
+	 * @param checksums
+	 */
+	void setChecksums(Checksums checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Set the stages the content goes through.
+	 * @param stageFactories
+	 */
+	void setStages(List<UploadStage.Factory> stageFactories) {
+		this.stageFactories = stageFactories;
+	}
+
+	/**
+	 * Set the checksums the client says the content has, checked once
+	 * complete.
+	 * @param expected as given by {@link Checksums#parse(String)}
+	 */
+	void setExpectedChecksums(Map<String, String> expected) {
+		this.expected = expected;
+	}
+
+	/**
+	 * The checksums of the content, once complete.
+	 * @return algorithm to hex value, empty if none were computed
+	 */
+	Map<String, String> getChecksums() {
+		return this.sums;
+	}
+
+	/**
+	 * Those configured, those the client sent to be checked and the one
+	 * the blob store needs.
+	 * @return
+	 */
+	private List<String> getAlgorithms() {
+		List<String> algorithms = new ArrayList<String>();
+		if (this.checksums != null) {
+			Collections.addAll(algorithms, this.checksums.getAlgorithms());
+		}
+		for (String algorithm : this.expected.keySet()) {
+			if (!algorithms.contains(algorithm)) {
+				algorithms.add(algorithm);
+			}
+		}
+		if (this.blobStore != null && !algorithms.contains(BlobStore.ALGORITHM)) {
+			algorithms.add(BlobStore.ALGORITHM);
+		}
+		return algorithms;
+	}
+
 	/**
 	 * Get approx. % of upload completed
 	 * @return
 	 */
 	float getCompletedPercent() {
-		long current = this.os.getCount();		
+		long current = this.count;
 		if (this.size == 0) {
 			return 0;
 		} else {
@@ -93,65 +246,303 @@ public class UploadRequest {
 	}
 	
 	/**
-	 * Do the job.
+	 * Create the destination file, data can be written after this.
 	 */
-	void process() throws IOException, SuperUploaderException {		
+	void open() throws IOException, SuperUploaderException {
 		if (!this.isComplete()) {
-			throw new SuperUploaderException("Upload request not complete - session: " + this.sessionId + " filename: " + this.fileName + " multipart stream " + this.multipartStream);
+			throw new SuperUploaderException("Upload request not complete - session: " + this.sessionId + " filename: " + this.fileName);
+		}
+		File sessionFolder;
+		try {
+			sessionFolder = this.storage.createSessionFolder(this.sessionId);
+		} catch (IOException e) {
+			throw new SuperUploaderException("Can't create dest. folder for session " + this.sessionId, e);
 		}
-		File sessionFolder = new File(this.docRoot, this.sessionId);
-		if (!sessionFolder.exists() && !sessionFolder.mkdir()) {
-			throw new SuperUploaderException("Can't create dest. folder: " + sessionFolder);
+		// deduplicated within the file system of the folder
+		this.blobStore = this.storage.getBlobStore(sessionFolder);
+		this.file = new File(sessionFolder, this.fileName);
+		// never write through a previous upload, it may share its blob with others
+		this.storage.changed(this.file);
+		if (this.blobStore != null) {
+			this.blobStore.delete(this.file);
+		} else {
+			Files.deleteIfExists(this.file.toPath());
 		}
-		final File file = new File(sessionFolder, this.fileName);
-		if (!file.exists() && !file.createNewFile()) {
-			throw new SuperUploaderException("Destination file cannot be created: " + file);
+		Checksums.delete(this.file);
+		if (!this.file.createNewFile()) {
+			throw new SuperUploaderException("Destination file cannot be created: " + this.file);
 		}
-		this.os = new CountingFileOutputStream(file);
-		this.multipartStream.readBodyData(os);
-		this.os.close();
+		this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+		this.start();
+		this.seen = true;
 	}
-	
-	@Override
-	public String toString() {
-		StringBuilder sb = new StringBuilder("UploadRequest {");
-		sb.append(this.sessionId).append(", ");
-		sb.append(this.fileName).append("}");
-		return sb.toString();
+
+	/**
+	 * Get the checksums and stages ready for the content.
+	 */
+	private void start() throws IOException {
+		List<String> algorithms = this.getAlgorithms();
+		this.digest = algorithms.isEmpty() ? null : new Checksums.Digest(algorithms);
+		this.stages = new ArrayList<UploadStage>(this.stageFactories.size());
+		for (UploadStage.Factory factory : this.stageFactories) {
+			UploadStage stage = factory.create(this.file);
+			if (stage != null) {
+				this.stages.add(stage);
+			}
+		}
 	}
 
 	/**
-	 * TODO: investigate why extending {@link FileOutputStream} doesn't work
-	 * with the same override.
+	 * Give the next bytes of the content to the checksums and stages. A
+	 * stage that fails is left out, the upload goes on without it.
+	 * @param data
 	 */
-	private class CountingFileOutputStream extends OutputStream {
-		
-		private long count = 0;
-		private FileOutputStream fos = null;
+	private void see(ByteBuffer data) {
+		if (this.digest != null) {
+			this.digest.update(data);
+		}
+		for (Iterator<UploadStage> it = this.stages.iterator(); it.hasNext();) {
+			UploadStage stage = it.next();
+			try {
+				stage.update(data);
+			} catch (Exception e) {
+				log.warn("Dropping " + stage + " for " + this.file, e);
+				it.remove();
+			}
+		}
+	}
 
-		/**
-		 * Construct forwarding all input to the given file.
-		 */
-		public CountingFileOutputStream(File file) throws FileNotFoundException {
-			this.fos = new FileOutputStream(file);
+	/**
+	 * Read the file through once for content that wasn't seen as it was
+	 * written.
+	 */
+	private void replay() throws IOException {
+		this.start();
+		if (this.digest == null && this.stages.isEmpty()) {
+			return;
 		}
+		FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				this.see(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+	}
 
-		/**
-		 * Return the count of bytes written to this OutputStream up to now.
-		 * @return
-		 */
-		public long getCount() {
-			return count;
+	/**
+	 * Create the destination file at the given size, so data can be written
+	 * at any offset in any order with {@link #write(ByteBuffer, long)}.
+	 * @param size
+	 */
+	void open(long size) throws IOException, SuperUploaderException {
+		this.open();
+		// written out of order, seen once complete
+		this.seen = false;
+		this.size = size;
+		if (size > 0) {
+			// the blocks in between are left to the file system to allocate
+			this.channel.write(ByteBuffer.allocate(1), size - 1);
 		}
+	}
+
+	/**
+	 * Whether the destination file is open and accepting data.
+	 * @return
+	 */
+	boolean isOpen() {
+		return this.channel != null && !this.completed && !this.aborted;
+	}
 
-		/**
-		 * Proxy to an internal {@link FileOutputStream} but counting the byte.
-		 */
-		@Override 
-		public void write(int b) throws IOException {
-			this.fos.write(b);
-			this.count++;
+	/**
+	 * Store the remaining content of the buffer, in as few writes as the
+	 * channel allows.
+	 * @param data
+	 */
+	void write(ByteBuffer data) throws IOException {
+		if (this.seen) {
+			this.see(data);
+		}
+		long written = this.count;
+		while (data.hasRemaining()) {
+			written += this.channel.write(data);
 		}
+		this.count = written;
+		this.lastActivity = System.currentTimeMillis();
+		UploadRequestTracker.getInstance().progressed(this);
+	}
+
+	/**
+	 * Store the remaining content of the buffer at the given position. Safe
+	 * to call from many threads at once, the progress is not updated until
+	 * {@link #stored(long)} confirms the data.
+	 * @param data
+	 * @param position
+	 */
+	void write(ByteBuffer data, long position) throws IOException {
+		while (data.hasRemaining()) {
+			position += this.channel.write(data, position);
+		}
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Count bytes written out of order as stored.
+	 * @param bytes
+	 */
+	void stored(long bytes) {
+		synchronized (this) {
+			this.count += bytes;
+		}
+		this.lastActivity = System.currentTimeMillis();
+		UploadRequestTracker.getInstance().progressed(this);
+	}
+
+	/**
+	 * Whether checksums or stages look at the content. If so it has to go
+	 * through {@link #write(ByteBuffer)}, content stored with
+	 * {@link #transfer(FileContentDecoder)} is read again once complete.
+	 * @return
+	 */
+	boolean isContentSeen() {
+		return this.digest != null || !this.stageFactories.isEmpty();
+	}
+
+	/**
+	 * Store whatever the decoder has available, letting it move the bytes
+	 * from the socket to the file without going through user space.
+	 * @param decoder
+	 * @return bytes stored, -1 if the end of the stream was reached
+	 */
+	long transfer(FileContentDecoder decoder) throws IOException {
+		// never seen here, only once complete
+		this.seen = false;
+		long transferred = decoder.transfer(this.channel, this.count, Integer.MAX_VALUE);
+		if (transferred > 0) {
+			this.count += transferred;
+			this.lastActivity = System.currentTimeMillis();
+			UploadRequestTracker.getInstance().progressed(this);
+		}
+		return transferred;
+	}
+
+	/**
+	 * All data has been written, close the destination file, making sure
+	 * it's on disk first if the storage asks for it. Its checksums
+	 * and stages are those that saw the content on the way in, or if it
+	 * wasn't seen it's read once now.
+	 * @throws ChecksumMismatchException if the content isn't what the client
+	 * said, the file is removed
+	 */
+	void complete() throws IOException {
+		if (this.storage.isSync()) {
+			this.channel.force(true);
+		}
+		this.channel.close();
+		if (!this.seen) {
+			this.replay();
+		}
+		if (this.digest != null) {
+			this.sums = this.digest.finish();
+			this.digest = null;
+		}
+		for (Map.Entry<String, String> sum : this.expected.entrySet()) {
+			if (!sum.getValue().equals(this.sums.get(sum.getKey()))) {
+				this.abort();
+				throw new ChecksumMismatchException(this.file.getName() + " " + sum.getKey() + " is " + this.sums.get(sum.getKey()) + ", expected " + sum.getValue());
+			}
+		}
+		this.completed = true;
+		// whatever was served while it was written is stale
+		this.storage.changed(this.file);
+		if (this.blobStore != null) {
+			try {
+				this.blobStore.store(this.file, this.sums.get(BlobStore.ALGORITHM));
+			} catch (IOException e) {
+				// the upload itself is fine, it just keeps its own copy
+				log.warn("Could not deduplicate " + this.file, e);
+			}
+		}
+		if (!this.sums.isEmpty()) {
+			try {
+				Checksums.save(this.file, this.sums);
+			} catch (IOException e) {
+				// downloads just go without
+				log.warn("Could not save checksums of " + this.file, e);
+			}
+		}
+		for (UploadStage stage : this.stages) {
+			try {
+				stage.complete(this.file);
+			} catch (Exception e) {
+				log.warn("Could not complete " + stage + " for " + this.file, e);
+			}
+		}
+		this.stages = Collections.emptyList();
+	}
+
+	/**
+	 * Whether all the data was stored.
+	 * @return
+	 */
+	boolean isCompleted() {
+		return this.completed;
+	}
+
+	/**
+	 * Give up on an unfinished upload, removing whatever was stored.
+	 */
+	void abort() {
+		if (this.channel == null || this.completed || this.aborted) {
+			return;
+		}
+		this.aborted = true;
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// nothing to do, the file goes away anyway
+		}
+		if (this.file != null && !this.file.delete()) {
+			this.file.deleteOnExit();
+		}
+	}
+	
+	/**
+	 * Give up on an unfinished upload, keeping what was stored for someone
+	 * to look at in the given folder, under the session id.
+	 * @param quarantine
+	 */
+	void quarantine(File quarantine) {
+		if (this.channel == null || this.completed || this.aborted) {
+			return;
+		}
+		File folder = new File(quarantine, this.sessionId);
+		try {
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Cannot create " + folder);
+			}
+			this.aborted = true;
+			this.channel.close();
+			Files.move(this.file.toPath(), new File(folder, this.fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			this.storage.changed(this.file);
+			log.info("Quarantined partial upload " + this + " in " + folder);
+		} catch (IOException e) {
+			log.warn("Could not quarantine " + this.file + ", removing it", e);
+			this.aborted = false;
+			this.abort();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("UploadRequest {");
+		sb.append(this.sessionId).append(", ");
+		sb.append(this.fileName).append("}");
+		return sb.toString();
 	}
 
 }
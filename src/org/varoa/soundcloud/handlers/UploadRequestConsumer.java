@@ -0,0 +1,441 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.fileupload.ParameterParser;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.varoa.soundcloud.SuperUploaderException;
+import org.varoa.soundcloud.Throttle;
+import org.varoa.soundcloud.WorkerPool;
+
+/**
+ * Streams a multipart upload straight to storage while it arrives, instead
+ * of buffering the whole body in memory before looking at it. Every part
+ * carrying a file name is stored to its own file as it's parsed, other form
+ * fields are skipped. A part can have its own {@value Checksums#HEADER}
+ * header, the one of the request applies to the first file. A file that
+ * fails doesn't stop the others.
+ *
+ * Each file is closed as soon as its part ends, on the worker parsing the
+ * body or, with parallel close, on another one while parsing goes on.
+ * 
+ * Non multipart bodies naming the file in a {@value #FILE_NAME_HEADER}
+ * header are stored as they are, letting the decoder move the content
+ * straight from the socket to the file when it can and neither checksums
+ * nor stages need to see it.
+ *
+ * The body is counted as it's read, and refused with a 413 the moment it
+ * goes over the limit, whatever its Content-Length said or if it had none.
+ */
+class UploadRequestConsumer extends AbstractAsyncRequestConsumer<UploadBatch> implements MultipartParser.Handler {
+
+	static final String FILE_NAME_HEADER = "X-File-Name";
+	private static final int RAW_BUFFER_SIZE = 64 * 1024;
+	/** closes files on the worker parsing the body */
+	private static final Executor INLINE = new Executor() {
+		public void execute(final Runnable task) {
+			task.run();
+		}
+	};
+
+	private final UploadRequest uploadReq;
+	private final WorkerPool workers;
+	private final Throttle.Flow flow;
+	private final Executor sequence;
+	private final UploadBatch batch;
+	private final boolean parallelClose;
+	private final long maxSize;
+	/** bytes of the body read so far */
+	private long received = 0;
+	/** the file being written, only touched in the sequence but for raw bodies */
+	private UploadRequest current = null;
+	private volatile boolean busy = false;
+	private String rawFileName = null;
+	private boolean raw = false;
+	private MultipartParser parser = null;
+	private ByteBuffer buffer = null;
+
+	/**
+	 * Storage work done on a worker.
+	 */
+	private interface StorageTask {
+		void run() throws IOException;
+	}
+
+	private final StorageTask parse = new StorageTask() {
+		public void run() throws IOException {
+			UploadRequestConsumer.this.parser.parse();
+		}
+	};
+
+	private final StorageTask writeRaw = new StorageTask() {
+		public void run() throws IOException {
+			ByteBuffer buffer = UploadRequestConsumer.this.buffer;
+			buffer.flip();
+			try {
+				UploadRequestConsumer.this.uploadReq.write(buffer);
+			} catch (IOException e) {
+				UploadRequestConsumer.this.uploadReq.fail(e);
+			}
+			buffer.clear();
+		}
+	};
+
+	/**
+	 * Construct filling the given upload request with the first file, the
+	 * next ones are alike. The storage work is done on the given pool.
+	 * @param uploadReq
+	 * @param workers
+	 * @param flow the upload is admitted and shaped by
+	 * @param parallelClose whether files are closed on other workers while
+	 * the parsing goes on
+	 * @param maxSize bytes the body may have, 0 for no limit
+	 */
+	UploadRequestConsumer(final UploadRequest uploadReq, final WorkerPool workers, final Throttle.Flow flow, final boolean parallelClose,
+			final long maxSize) {
+		this.uploadReq = uploadReq;
+		this.workers = workers;
+		this.flow = flow;
+		this.parallelClose = parallelClose;
+		this.maxSize = maxSize;
+		this.sequence = workers.newSequence();
+		this.uploadReq.setExecutor(this.sequence);
+		this.batch = new UploadBatch(uploadReq.getSessionId(), this.sequence);
+	}
+
+	@Override
+	protected void onRequestReceived(final HttpRequest request) {
+		Header header = request.getFirstHeader(FILE_NAME_HEADER);
+		if (header != null) {
+			this.rawFileName = stripPath(header.getValue());
+		}
+		header = request.getFirstHeader(Checksums.HEADER);
+		if (header != null) {
+			this.uploadReq.setExpectedChecksums(Checksums.parse(header.getValue()));
+		}
+	}
+
+	@Override
+	protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) throws IOException {
+		String boundary = null;
+		Header header = entity.getContentType();
+		if (header != null) {
+			for (HeaderElement element : header.getElements()) {
+				NameValuePair param = element.getParameterByName("boundary");
+				if (param != null) {
+					boundary = param.getValue();
+				}
+			}
+		}
+		// the size of the whole body, the progress of later files adds to it
+		this.uploadReq.setApproxSize(entity.getContentLength());
+		if (boundary == null || boundary.length() == 0) {
+			if (this.rawFileName == null) {
+				this.batch.fail(new SuperUploaderException("Not a multipart request: " + header));
+			} else {
+				this.raw = true;
+				this.batch.add(this.uploadReq);
+				this.sequence.execute(new Runnable() {
+					public void run() {
+						try {
+							UploadRequestConsumer.this.begin(UploadRequestConsumer.this.uploadReq, UploadRequestConsumer.this.rawFileName);
+						} catch (IOException e) {
+							UploadRequestConsumer.this.uploadReq.fail(e);
+						}
+					}
+				});
+			}
+			return;
+		}
+		this.parser = new MultipartParser(boundary.getBytes("ISO-8859-1"), MultipartParser.DEFAULT_BUFFER_SIZE, this);
+	}
+
+	/**
+	 * Reading from the decoder has to happen here on the I/O thread, but the
+	 * parsing and writing of what was read is handed to the worker pool.
+	 * Input is suspended until that's done so the buffer is never shared,
+	 * and for longer if the session is over its rate.
+	 */
+	@Override
+	protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+		if (this.busy || !this.flow.acquire(ioctrl)) {
+			return;
+		}
+		if (this.batch.getFailure() == null && (!this.raw || this.uploadReq.getFailure() == null)) {
+			if (this.raw && this.workers.isInline() && decoder instanceof FileContentDecoder && !this.uploadReq.isContentSeen()) {
+				long transferred;
+				long until = 0;
+				while (until == 0 && this.uploadReq.isOpen() && (transferred = this.uploadReq.transfer((FileContentDecoder) decoder)) > 0) {
+					// keep going while the socket has data
+					this.count(transferred);
+					until = this.flow.take(transferred);
+				}
+				if (!decoder.isCompleted()) {
+					this.flow.pauseInput(ioctrl, until);
+				}
+				return;
+			} else if (this.raw) {
+				if (this.buffer == null) {
+					this.buffer = ByteBuffer.allocateDirect(RAW_BUFFER_SIZE);
+				}
+				int read;
+				do {
+					read = decoder.read(this.buffer);
+				} while (read > 0 && this.buffer.hasRemaining());
+				if (this.buffer.position() > 0) {
+					this.count(this.buffer.position());
+					this.offload(this.writeRaw, decoder, ioctrl, this.flow.take(this.buffer.position()));
+				}
+				return;
+			} else if (this.parser != null) {
+				int filled = this.parser.fill(decoder);
+				if (filled > 0) {
+					this.count(filled);
+					this.offload(this.parse, decoder, ioctrl, this.flow.take(filled));
+				}
+				return;
+			}
+		}
+		// nothing useful will come out of it, drain the rest of the body
+		if (this.buffer == null) {
+			this.buffer = ByteBuffer.allocate(4 * 1024);
+		}
+		int read;
+		do {
+			this.buffer.clear();
+			read = decoder.read(this.buffer);
+			this.count(read);
+		} while (read > 0);
+	}
+
+	/**
+	 * Add bytes read to the body.
+	 * @param bytes
+	 * @throws IOException carrying a 413 if the body is now over the limit
+	 */
+	private void count(final long bytes) throws IOException {
+		if (bytes > 0) {
+			this.received += bytes;
+		}
+		if (this.maxSize > 0 && this.received > this.maxSize) {
+			throw UploadHandler.tooLarge(this.maxSize).asIOException();
+		}
+	}
+
+	/**
+	 * Run the task in sequence with the rest of the storage work of this
+	 * upload, with input suspended until it's done.
+	 * @param task
+	 * @param decoder
+	 * @param ioctrl
+	 * @param until time before which input stays suspended, 0 for none
+	 */
+	private void offload(final StorageTask task, final ContentDecoder decoder, final IOControl ioctrl, final long until) {
+		// once the body is complete input stays suspended until the response is out
+		final boolean last = decoder.isCompleted();
+		this.busy = true;
+		ioctrl.suspendInput();
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				try {
+					if (UploadRequestConsumer.this.batch.getFailure() == null) {
+						task.run();
+					}
+				} catch (IOException e) {
+					UploadRequestConsumer.this.batch.fail(e);
+				} finally {
+					UploadRequestConsumer.this.busy = false;
+					if (!last) {
+						UploadRequestConsumer.this.flow.resumeInput(ioctrl, until);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * The result is handed out straight away, but the final checks are queued
+	 * behind any storage work still pending, as is anything the handler
+	 * submits to {@link UploadBatch#getExecutor()}.
+	 */
+	@Override
+	protected UploadBatch buildResult(final HttpContext context) {
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				UploadRequestConsumer.this.verify();
+			}
+		});
+		return this.batch;
+	}
+
+	private void verify() {
+		if (this.raw) {
+			if (this.uploadReq.isOpen()) {
+				try {
+					this.uploadReq.complete();
+				} catch (IOException e) {
+					this.uploadReq.fail(e);
+				}
+			}
+		} else if (this.parser != null && !this.parser.isComplete()) {
+			this.batch.fail(new SuperUploaderException("Truncated multipart body"));
+		} else if (this.parser != null && this.batch.getFiles().isEmpty()) {
+			this.batch.fail(new SuperUploaderException("No file found in multipart body"));
+		}
+	}
+
+	/**
+	 * Files left unfinished are removed, once those being closed are done.
+	 */
+	@Override
+	protected void releaseResources() {
+		this.flow.release();
+		this.sequence.execute(new Runnable() {
+			public void run() {
+				UploadRequestConsumer.this.parser = null;
+				UploadRequestConsumer.this.buffer = null;
+				UploadRequestConsumer.this.current = null;
+				UploadRequestConsumer.this.batch.whenClosed(new Runnable() {
+					public void run() {
+						for (UploadRequest file : UploadRequestConsumer.this.batch.getFiles()) {
+							if (!file.isCompleted()) {
+								file.abort();
+								UploadRequestTracker.getInstance().removeUploadRequest(file);
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Implements contract from {@link MultipartParser.Handler}, starts
+	 * storing each part that carries a file.
+	 */
+	public boolean startPart(final String headers) throws IOException {
+		String fileName = extractFileName(headers);
+		if (fileName == null) {
+			return false;
+		}
+		UploadRequest file = this.batch.getFiles().isEmpty() ? this.uploadReq : this.uploadReq.next();
+		String sums = extractHeader(headers, Checksums.HEADER);
+		if (sums != null) {
+			file.setExpectedChecksums(Checksums.parse(sums));
+		}
+		this.batch.add(file);
+		if (!this.begin(file, fileName)) {
+			return false;
+		}
+		this.current = file;
+		return true;
+	}
+
+	/**
+	 * A file that can't be written is dropped, the rest of its part skipped.
+	 */
+	public void partContent(final ByteBuffer data) {
+		if (this.current == null) {
+			return;
+		}
+		try {
+			this.current.write(data);
+		} catch (IOException e) {
+			this.current.fail(e);
+			this.current.abort();
+			this.current = null;
+		}
+	}
+
+	public void endPart() {
+		if (this.current == null) {
+			return;
+		}
+		if (this.parallelClose) {
+			this.batch.close(this.current, this.workers);
+		} else {
+			this.batch.close(this.current, INLINE);
+		}
+		this.current = null;
+	}
+
+	/**
+	 * Track the upload and create the file its content goes to.
+	 * @param file
+	 * @param fileName
+	 * @return true if content can be written
+	 * @throws IOException
+	 */
+	private boolean begin(final UploadRequest file, final String fileName) throws IOException {
+		file.setFileName(fileName);
+		try {
+			UploadRequestTracker.getInstance().addUploadRequest(file);
+			file.open();
+			return true;
+		} catch (SuperUploaderException e) {
+			file.fail(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Find the file name in the Content-Disposition header of a part, without
+	 * any path the browser may have sent along with it.
+	 * @param headers
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static String extractFileName(final String headers) {
+		String disposition = extractHeader(headers, "Content-Disposition");
+		if (disposition == null) {
+			return null;
+		}
+		ParameterParser parser = new ParameterParser();
+		parser.setLowerCaseNames(true);
+		Map<String, String> params = parser.parse(disposition, ';');
+		String fileName = params.get("filename");
+		return (fileName == null) ? null : stripPath(fileName);
+	}
+
+	/**
+	 * The value of the first header of a part with the given name.
+	 * @param headers
+	 * @param name
+	 * @return null if there's none
+	 */
+	static String extractHeader(final String headers, final String name) {
+		for (String line : headers.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon >= 0 && name.equalsIgnoreCase(line.substring(0, colon).trim())) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keep only the last segment of a client supplied path. Names starting
+	 * with a dot are refused, those are the server's own files beside the
+	 * uploads, like their checksums and waveforms.
+	 * @param fileName
+	 * @return the name, null if nothing usable is left
+	 */
+	static String stripPath(final String fileName) {
+		String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+		return (name.length() == 0 || name.charAt(0) == '.') ? null : name;
+	}
+
+}
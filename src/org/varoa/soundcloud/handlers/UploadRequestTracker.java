@@ -1,66 +1,324 @@
 package org.varoa.soundcloud.handlers;
 
-import java.util.HashMap;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.varoa.soundcloud.SuperUploaderException;
 
 /**
  * Singleton used to track all active upload sessions.
+ *
+ * Uploads are added and removed by the I/O and worker threads while progress
+ * polls read them from others, so everything is kept in concurrent
+ * structures and progress is read from the volatile counters of each
+ * {@link UploadRequest} without any locking.
  */
 public class UploadRequestTracker {
 
 	private static final Logger log = Logger.getLogger(UploadRequestTracker.class);
-	private static UploadRequestTracker instance = null;
-	private Map<String, UploadRequest> map = new HashMap<String, UploadRequest>();
-	
+	private final ConcurrentMap<String, Set<UploadRequest>> map = new ConcurrentHashMap<String, Set<UploadRequest>>();
+	private final ConcurrentMap<String, Set<ProgressWatcher>> watchers = new ConcurrentHashMap<String, Set<ProgressWatcher>>();
+	private final ScheduledThreadPoolExecutor scheduler;
+	private boolean evicting = false;
+
+	private UploadRequestTracker() {
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "Upload tracker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Initialized on first use by the class loader, which makes it safe
+	 * without any locking of our own.
+	 */
+	private static class Holder {
+		static final UploadRequestTracker instance = new UploadRequestTracker();
+	}
+
 	public static UploadRequestTracker getInstance() {
-		if (UploadRequestTracker.instance == null) {
-			UploadRequestTracker.instance = new UploadRequestTracker();
-		}
-		return UploadRequestTracker.instance;
+		return Holder.instance;
 	}
-	
+
 	/**
-	 * Adds an upload request for the given session, expects that none exist
-	 * already and will throw {@link SuperUploaderException} otherwise.
-	 * 
-	 * @param sessionId
+	 * Adds an upload request for its session. A session can have many
+	 * uploads going on at the same time, but not two to the same file,
+	 * in which case {@link SuperUploaderException} is thrown.
+	 *
 	 * @param req
 	 * @throws SuperUploaderException
 	 */
-	void addUploadRequest(final UploadRequest req) throws SuperUploaderException { 
+	void addUploadRequest(final UploadRequest req) throws SuperUploaderException {
 		final String sessionId = req.getSessionId();
-		log.info("New upload request tracked: " + req);
-		if (this.map.containsKey(sessionId)) {
-			throw new SuperUploaderException("Upload request already present!");
+		while (true) {
+			Set<UploadRequest> uploads = this.map.get(sessionId);
+			if (uploads == null) {
+				Set<UploadRequest> created = ConcurrentHashMap.newKeySet();
+				uploads = this.map.putIfAbsent(sessionId, created);
+				if (uploads == null) {
+					uploads = created;
+				}
+			}
+			// writers of a session lock its set, readers never do
+			synchronized (uploads) {
+				if (this.map.get(sessionId) != uploads) {
+					// dropped as empty meanwhile, start over
+					continue;
+				}
+				for (UploadRequest other : uploads) {
+					if (other.getFileName().equals(req.getFileName())) {
+						throw new SuperUploaderException("Upload of " + req.getFileName() + " already in progress!");
+					}
+				}
+				uploads.add(req);
+				break;
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("New upload request tracked: " + req);
 		}
-		this.map.put(sessionId, req);
 	}
-	
+
 	/**
-	 * Removes an upload request for a given session, if exists.
+	 * Removes an upload request, if tracked.
 	 * @param uploadReq
 	 */
 	void removeUploadRequest(final UploadRequest uploadReq) {
-		this.map.remove(uploadReq.getSessionId());
+		final String sessionId = uploadReq.getSessionId();
+		Set<UploadRequest> uploads = this.map.get(sessionId);
+		if (uploads == null) {
+			return;
+		}
+		synchronized (uploads) {
+			if (uploads.remove(uploadReq) && uploads.isEmpty()) {
+				this.map.remove(sessionId, uploads);
+			}
+		}
+		this.notifyWatchers(sessionId);
+	}
+
+	/**
+	 * Called as an upload stores data, to update whoever waits for its
+	 * progress. Costs a map lookup when nobody does.
+	 * @param uploadReq
+	 */
+	void progressed(final UploadRequest uploadReq) {
+		if (!this.watchers.isEmpty()) {
+			this.notifyWatchers(uploadReq.getSessionId());
+		}
+	}
+
+	/**
+	 * Wait for the progress of a session, answering the watcher after the
+	 * given time if nothing happened by then.
+	 * @param watcher
+	 * @param maxWait ms
+	 */
+	void addWatcher(final ProgressWatcher watcher, final int maxWait) {
+		final String sessionId = watcher.getSessionId();
+		Set<ProgressWatcher> set = this.watchers.get(sessionId);
+		while (true) {
+			if (set == null) {
+				Set<ProgressWatcher> created = ConcurrentHashMap.newKeySet();
+				set = this.watchers.putIfAbsent(sessionId, created);
+				if (set == null) {
+					set = created;
+				}
+			}
+			synchronized (set) {
+				if (this.watchers.get(sessionId) == set) {
+					set.add(watcher);
+					break;
+				}
+			}
+			set = null;
+		}
+		watcher.setExpiry(this.scheduler.schedule(new Runnable() {
+			public void run() {
+				UploadRequestTracker.this.removeWatcher(watcher);
+				watcher.respond(UploadRequestTracker.this.getUploadProgressPercent(sessionId));
+			}
+		}, maxWait, TimeUnit.MILLISECONDS));
+		// progress may have moved while registering
+		if (watcher.offer(this.getUploadProgressPercent(sessionId))) {
+			this.removeWatcher(watcher);
+		}
+	}
+
+	/**
+	 * Stop updating the watcher.
+	 * @param watcher
+	 */
+	void removeWatcher(final ProgressWatcher watcher) {
+		final String sessionId = watcher.getSessionId();
+		Set<ProgressWatcher> set = this.watchers.get(sessionId);
+		if (set == null) {
+			return;
+		}
+		synchronized (set) {
+			if (set.remove(watcher) && set.isEmpty()) {
+				this.watchers.remove(sessionId, set);
+			}
+		}
 	}
-	
+
 	/**
-	 * Returns the current % stored in the request associated to the given 
+	 * Answer every poll waiting now, e.g. when the server is stopping.
+	 */
+	public void answerWatchers() {
+		for (Map.Entry<String, Set<ProgressWatcher>> entry : this.watchers.entrySet()) {
+			Float progress = this.getUploadProgressPercent(entry.getKey());
+			for (ProgressWatcher watcher : entry.getValue()) {
+				this.removeWatcher(watcher);
+				watcher.respond(progress);
+			}
+		}
+	}
+
+	private void notifyWatchers(final String sessionId) {
+		Set<ProgressWatcher> set = this.watchers.get(sessionId);
+		if (set == null) {
+			return;
+		}
+		Float progress = this.getUploadProgressPercent(sessionId);
+		for (ProgressWatcher watcher : set) {
+			if (watcher.offer(progress)) {
+				this.removeWatcher(watcher);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current % stored of all the requests associated to the given
 	 * session, null if no requests for that session currently active.
-	 * 
+	 *
 	 * @param sessionId
 	 * @return
 	 */
 	Float getUploadProgressPercent(final String sessionId) {
-		UploadRequest req = this.map.get(sessionId);
-		Float res = null;
-		if (req != null) {
-			res = req.getCompletedPercent();
+		Set<UploadRequest> uploads = this.map.get(sessionId);
+		if (uploads == null) {
+			return null;
+		}
+		long count = 0;
+		long size = 0;
+		boolean found = false;
+		for (UploadRequest req : uploads) {
+			count += req.getCount();
+			size += req.getApproxSize();
+			found = true;
 		}
-		return res;
+		if (!found) {
+			return null;
+		}
+		return (size == 0) ? 0f : (float)(100 * count) / size;
+	}
+
+	/**
+	 * The uploads of the session, for the progress of each.
+	 * @param sessionId
+	 * @return empty if none
+	 */
+	Collection<UploadRequest> getUploads(final String sessionId) {
+		Set<UploadRequest> uploads = this.map.get(sessionId);
+		return (uploads == null) ? Collections.<UploadRequest>emptySet() : uploads;
 	}
-	
+
+	/**
+	 * Number of uploads being tracked.
+	 * @return
+	 */
+	public int getActiveUploads() {
+		int active = 0;
+		for (Set<UploadRequest> uploads : this.map.values()) {
+			active += uploads.size();
+		}
+		return active;
+	}
+
+	/**
+	 * Drop every upload still tracked, once nothing stores data anymore on
+	 * shutdown. What they stored is moved to the given folder, or removed.
+	 * @param quarantine null to remove partial files
+	 * @return how many were dropped
+	 */
+	public int dropAll(final File quarantine) {
+		int dropped = 0;
+		for (Set<UploadRequest> uploads : this.map.values()) {
+			for (UploadRequest req : uploads) {
+				this.removeUploadRequest(req);
+				req.fail(new SuperUploaderException("Server stopped"));
+				if (quarantine != null) {
+					req.quarantine(quarantine);
+				} else {
+					req.abort();
+				}
+				dropped++;
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Periodically drop uploads that haven't stored anything for the given
+	 * time, so one that died without its connection noticing doesn't stay
+	 * around forever.
+	 * @param staleMillis
+	 */
+	public synchronized void startEviction(final long staleMillis) {
+		if (this.evicting || staleMillis <= 0) {
+			return;
+		}
+		this.evicting = true;
+		long period = Math.max(1000, staleMillis / 4);
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				UploadRequestTracker.this.evictStale(System.currentTimeMillis() - staleMillis);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drop the uploads that stored nothing since the given time, removing
+	 * what they had stored.
+	 * @param deadline
+	 */
+	void evictStale(final long deadline) {
+		for (Set<UploadRequest> uploads : this.map.values()) {
+			for (final UploadRequest req : uploads) {
+				if (req.getLastActivity() >= deadline) {
+					continue;
+				}
+				log.warn("Evicting stalled upload: " + req);
+				this.removeUploadRequest(req);
+				req.fail(new SuperUploaderException("Upload stalled"));
+				Runnable abort = new Runnable() {
+					public void run() {
+						req.abort();
+					}
+				};
+				Executor executor = req.getExecutor();
+				if (executor != null) {
+					executor.execute(abort);
+				} else {
+					abort.run();
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,49 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Work done on the content of an upload while it's stored, so whatever
+ * needs to look at the file doesn't have to read it again once complete.
+ *
+ * A stage sees the content in order, from the worker storing the upload.
+ * Content that isn't stored in order, or that goes from the socket to the
+ * file without being seen, is read back from the file once complete and
+ * given to new stages instead.
+ */
+public interface UploadStage {
+
+	/**
+	 * The next bytes of the content, from the position to the limit of the
+	 * buffer, which must be left as they are.
+	 * @param data
+	 * @throws IOException
+	 */
+	void update(ByteBuffer data) throws IOException;
+
+	/**
+	 * All the content has been seen and stored, keep the results for the
+	 * file.
+	 * @param file
+	 * @throws IOException
+	 */
+	void complete(File file) throws IOException;
+
+	/**
+	 * Creates the stages of each upload.
+	 */
+	public interface Factory {
+
+		/**
+		 * A stage for the content of the file, which is being replaced, so
+		 * results kept for a previous one are to be dropped.
+		 * @param file
+		 * @return null if the stage has nothing to do for it
+		 * @throws IOException
+		 */
+		UploadStage create(File file) throws IOException;
+	}
+
+}
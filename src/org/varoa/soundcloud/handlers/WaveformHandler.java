@@ -0,0 +1,53 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.varoa.soundcloud.SessionExtractor;
+
+/**
+ * Serves the waveform and metadata the {@link WaveformStage} worked out for
+ * a file of the session, GET /waveform/name, as soon as its upload is
+ * complete.
+ */
+public class WaveformHandler extends HttpFileHandler {
+
+	private static Logger log = Logger.getLogger(WaveformHandler.class);
+	private static final String PATH = "/waveform/";
+	private Storage storage = null;
+
+	public WaveformHandler(final Storage storage) {
+		this.storage = storage;
+	}
+
+	@Override
+	protected ContentType getContentType(final File f) {
+		return ContentType.APPLICATION_JSON;
+	}
+
+	@Override
+	protected File getRequestedFile(final HttpRequest request, final HttpContext context) {
+		String uri = request.getRequestLine().getUri();
+		int query = uri.indexOf('?');
+		String target = uri.substring(Math.min(PATH.length(), uri.length()), (query < 0) ? uri.length() : query);
+		try {
+			String name = UploadRequestConsumer.stripPath(URLDecoder.decode(target, "UTF-8"));
+			if (name == null) {
+				return null;
+			}
+			File sessionStorage = this.storage.getSessionFolder(SessionExtractor.extractSession(context));
+			return WaveformStage.getWaveformFile(new File(sessionStorage, name));
+		} catch (UnsupportedEncodingException e) {
+			log.error("Could not decode URL: ", e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
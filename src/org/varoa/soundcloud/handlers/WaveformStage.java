@@ -0,0 +1,430 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Waveform overview and basic metadata of WAV uploads, worked out while
+ * they stream in. The RIFF chunks are followed as they come: the format
+ * chunk gives channels, sample rate and sample size, a LIST INFO chunk the
+ * tags, and the PCM samples of the data chunk are reduced to about as many
+ * peaks as asked for. Anything that isn't a WAV file is ignored.
+ *
+ * Once complete the results go beside the upload in ".name.waveform" as
+ * JSON, e.g.
+ *
+ * <pre>
+ * {"format":"pcm","channels":2,"sampleRate":44100,"bitsPerSample":16,
+ *  "duration":215.34,"framesPerPeak":9274,"tags":{"title":"..."},
+ *  "peaks":[0,12,255,...]}
+ * </pre>
+ *
+ * where each peak is the loudest sample of its frames, of any channel,
+ * from 0 to 255. Compressed WAV files only get their metadata.
+ */
+public class WaveformStage implements UploadStage {
+
+	static final String SUFFIX = ".waveform";
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** bytes of the format and LIST chunks looked at, the rest is skipped */
+	private static final int MAX_FMT = 64;
+	private static final int MAX_INFO = 16 * 1024;
+	private static final int FORMAT_PCM = 1;
+	private static final int FORMAT_FLOAT = 3;
+	private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+	private static final String[][] TAGS = {
+		{ "INAM", "title" }, { "IART", "artist" }, { "IPRD", "album" }, { "IGNR", "genre" },
+		{ "ICRD", "date" }, { "ICMT", "comment" }, { "ISFT", "software" } };
+
+	/** what the next bytes are */
+	private enum State { RIFF, CHUNK, BODY, SKIP, SAMPLES, DONE }
+
+	private final int peaks;
+	private State state = State.RIFF;
+	private boolean wave = false;
+	/** header or chunk body being gathered */
+	private byte[] header = new byte[12];
+	private int have = 0;
+	private int need = 12;
+	private String chunkId = null;
+	/** bytes left in the chunk being skipped or read */
+	private long left = 0;
+	/** skipped once the chunk body is gathered */
+	private long extra = 0;
+
+	private int format = 0;
+	private int channels = 0;
+	private long sampleRate = 0;
+	private long byteRate = 0;
+	private int blockAlign = 0;
+	private int bitsPerSample = 0;
+	private final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+	private long dataBytes = 0;
+	private long framesPerPeak = 0;
+	private ByteBuffer frame = null;
+	private int sampleBytes = 0;
+	private long framesInPeak = 0;
+	private int peak = 0;
+	private int[] levels = new int[256];
+	private int count = 0;
+
+	/**
+	 * @param peaks about how many to reduce the samples to
+	 */
+	WaveformStage(final int peaks) {
+		this.peaks = peaks;
+	}
+
+	/**
+	 * Creates the stage of each upload.
+	 * @param peaks about how many to reduce the samples of each file to
+	 * @return
+	 */
+	public static UploadStage.Factory factory(final int peaks) {
+		return new UploadStage.Factory() {
+			public UploadStage create(final File file) throws IOException {
+				Files.deleteIfExists(getWaveformFile(file).toPath());
+				return new WaveformStage(peaks);
+			}
+		};
+	}
+
+	/**
+	 * The file the waveform of the given one is kept in.
+	 * @param file
+	 * @return
+	 */
+	static File getWaveformFile(final File file) {
+		return new File(file.getParentFile(), "." + file.getName() + SUFFIX);
+	}
+
+	public void update(final ByteBuffer data) {
+		ByteBuffer in = data.duplicate();
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		while (in.hasRemaining() && this.state != State.DONE) {
+			switch (this.state) {
+			case SKIP:
+				int skipped = (int) Math.min(in.remaining(), this.left);
+				in.position(in.position() + skipped);
+				this.left -= skipped;
+				if (this.left == 0) {
+					this.expect(State.CHUNK, 8);
+				}
+				break;
+			case SAMPLES:
+				this.samples(in);
+				break;
+			default:
+				int n = Math.min(in.remaining(), this.need - this.have);
+				in.get(this.header, this.have, n);
+				this.have += n;
+				if (this.have == this.need) {
+					this.gathered();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gather the next bytes into the header.
+	 * @param state
+	 * @param need
+	 */
+	private void expect(final State state, final int need) {
+		this.state = state;
+		this.have = 0;
+		this.need = need;
+		if (this.header.length < need) {
+			this.header = new byte[need];
+		}
+	}
+
+	private void skip(final long bytes) {
+		if (bytes <= 0) {
+			this.expect(State.CHUNK, 8);
+		} else {
+			this.state = State.SKIP;
+			this.left = bytes;
+		}
+	}
+
+	/**
+	 * The header wanted has been gathered.
+	 */
+	private void gathered() {
+		ByteBuffer header = ByteBuffer.wrap(this.header, 0, this.need).order(ByteOrder.LITTLE_ENDIAN);
+		if (this.state == State.RIFF) {
+			if (!"RIFF".equals(text(this.header, 0, 4)) || !"WAVE".equals(text(this.header, 8, 4))) {
+				this.state = State.DONE;
+				return;
+			}
+			this.wave = true;
+			this.expect(State.CHUNK, 8);
+		} else if (this.state == State.CHUNK) {
+			this.chunkId = text(this.header, 0, 4);
+			long size = header.getInt(4) & 0xFFFFFFFFL;
+			// chunks are padded to an even size
+			long padded = size + (size & 1);
+			if ("data".equals(this.chunkId)) {
+				this.startSamples(size);
+			} else if ("fmt ".equals(this.chunkId) || "LIST".equals(this.chunkId)) {
+				int body = (int) Math.min(size, "LIST".equals(this.chunkId) ? MAX_INFO : MAX_FMT);
+				this.extra = padded - body;
+				this.expect(State.BODY, body);
+			} else {
+				this.skip(padded);
+			}
+		} else if (this.state == State.BODY) {
+			if ("fmt ".equals(this.chunkId)) {
+				this.parseFormat(header);
+			} else {
+				this.parseInfo(header);
+			}
+			this.skip(this.extra);
+		}
+	}
+
+	private void parseFormat(final ByteBuffer fmt) {
+		if (fmt.limit() < 16) {
+			return;
+		}
+		this.format = fmt.getShort(0) & 0xFFFF;
+		this.channels = fmt.getShort(2) & 0xFFFF;
+		this.sampleRate = fmt.getInt(4) & 0xFFFFFFFFL;
+		this.byteRate = fmt.getInt(8) & 0xFFFFFFFFL;
+		this.blockAlign = fmt.getShort(12) & 0xFFFF;
+		this.bitsPerSample = fmt.getShort(14) & 0xFFFF;
+		if (this.format == FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+			// the format is the start of the sub format GUID
+			this.format = fmt.getShort(24) & 0xFFFF;
+		}
+	}
+
+	private void parseInfo(final ByteBuffer list) {
+		if (list.limit() < 4 || !"INFO".equals(text(this.header, 0, 4))) {
+			return;
+		}
+		int position = 4;
+		while (position + 8 <= list.limit()) {
+			String id = text(this.header, position, 4);
+			int size = list.getInt(position + 4);
+			position += 8;
+			if (size < 0 || position + size > list.limit()) {
+				return;
+			}
+			int end = position;
+			while (end < position + size && this.header[end] != 0) {
+				end++;
+			}
+			for (String[] tag : TAGS) {
+				if (tag[0].equals(id)) {
+					this.tags.put(tag[1], new String(this.header, position, end - position, UTF8).trim());
+				}
+			}
+			position += size + (size & 1);
+		}
+	}
+
+	/**
+	 * The data chunk starts, the peaks are only worked out for plain PCM
+	 * and float samples.
+	 * @param size
+	 */
+	private void startSamples(final long size) {
+		this.state = State.SAMPLES;
+		// streamed files may not know their size yet
+		this.left = (size == 0 || size == 0xFFFFFFFFL) ? Long.MAX_VALUE : size;
+		this.extra = size & 1;
+		this.frame = null;
+		if (this.channels == 0 || this.blockAlign == 0 || this.blockAlign % this.channels != 0) {
+			return;
+		}
+		this.sampleBytes = this.blockAlign / this.channels;
+		boolean pcm = this.format == FORMAT_PCM && this.sampleBytes <= 4;
+		boolean floating = this.format == FORMAT_FLOAT && (this.sampleBytes == 4 || this.sampleBytes == 8);
+		if (!pcm && !floating) {
+			return;
+		}
+		long frames = (this.left == Long.MAX_VALUE) ? 0 : size / this.blockAlign;
+		// ten per second if the length isn't known
+		this.framesPerPeak = (frames > 0) ? Math.max(1, (frames + this.peaks - 1) / this.peaks) : Math.max(1, this.sampleRate / 10);
+		this.frame = ByteBuffer.allocate(this.blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void samples(final ByteBuffer in) {
+		int n = (int) Math.min(in.remaining(), this.left);
+		this.left -= n;
+		this.dataBytes += n;
+		if (this.frame == null) {
+			in.position(in.position() + n);
+		} else {
+			int end = in.position() + n;
+			// a frame split between buffers
+			if (this.frame.position() > 0) {
+				while (in.position() < end && this.frame.hasRemaining()) {
+					this.frame.put(in.get());
+				}
+				if (!this.frame.hasRemaining()) {
+					this.frame(this.frame, 0);
+					this.frame.clear();
+				}
+			}
+			if (this.frame.position() == 0) {
+				int position = in.position();
+				for (; position + this.blockAlign <= end; position += this.blockAlign) {
+					this.frame(in, position);
+				}
+				in.position(position);
+				while (in.position() < end) {
+					this.frame.put(in.get());
+				}
+			}
+		}
+		if (this.left == 0) {
+			// a chunk ending partway through a frame, the rest of it never comes
+			if (this.frame != null) {
+				this.frame.clear();
+			}
+			this.skip(this.extra);
+		}
+	}
+
+	/**
+	 * Account for the frame at the given position.
+	 * @param buffer little endian
+	 * @param position
+	 */
+	private void frame(final ByteBuffer buffer, final int position) {
+		int loudest = 0;
+		for (int i = 0, at = position; i < this.channels; i++, at += this.sampleBytes) {
+			int level = this.level(buffer, at);
+			if (level > loudest) {
+				loudest = level;
+			}
+		}
+		if (loudest > this.peak) {
+			this.peak = loudest;
+		}
+		if (++this.framesInPeak == this.framesPerPeak) {
+			this.addPeak();
+		}
+	}
+
+	/**
+	 * The absolute level of a sample, 0 to 255.
+	 * @param buffer
+	 * @param at
+	 * @return
+	 */
+	private int level(final ByteBuffer buffer, final int at) {
+		if (this.format == FORMAT_FLOAT) {
+			double value = Math.abs((this.sampleBytes == 4) ? buffer.getFloat(at) : buffer.getDouble(at));
+			return (int) (Math.min(value, 1.0) * 255);
+		}
+		long value;
+		switch (this.sampleBytes) {
+		case 1:
+			// the only unsigned size
+			value = ((buffer.get(at) & 0xFF) - 128) << 24;
+			break;
+		case 2:
+			value = buffer.getShort(at) << 16;
+			break;
+		case 3:
+			value = ((buffer.get(at) & 0xFF) << 8) | ((buffer.get(at + 1) & 0xFF) << 16) | (buffer.get(at + 2) << 24);
+			break;
+		default:
+			value = buffer.getInt(at);
+		}
+		// full scale as 32 bits
+		return (int) (Math.min(Math.abs(value), Integer.MAX_VALUE) >> 23);
+	}
+
+	private void addPeak() {
+		if (this.count == this.levels.length) {
+			this.levels = Arrays.copyOf(this.levels, this.count * 2);
+		}
+		this.levels[this.count++] = this.peak;
+		this.peak = 0;
+		this.framesInPeak = 0;
+	}
+
+	/**
+	 * Write the results as JSON beside the file, if it was a WAV file.
+	 */
+	public void complete(final File file) throws IOException {
+		if (!this.wave) {
+			return;
+		}
+		if (this.framesInPeak > 0) {
+			this.addPeak();
+		}
+		File target = getWaveformFile(file);
+		File tmp = new File(target.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(this.toJson().getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	String toJson() {
+		StringBuilder sb = new StringBuilder("{\"format\":\"");
+		if (this.format == FORMAT_PCM) {
+			sb.append("pcm");
+		} else if (this.format == FORMAT_FLOAT) {
+			sb.append("float");
+		} else {
+			sb.append(String.format("0x%04x", this.format));
+		}
+		sb.append("\",\"channels\":").append(this.channels);
+		sb.append(",\"sampleRate\":").append(this.sampleRate);
+		sb.append(",\"bitsPerSample\":").append(this.bitsPerSample);
+		double duration = (this.byteRate == 0) ? 0 : (double) this.dataBytes / this.byteRate;
+		sb.append(",\"duration\":").append(Math.round(duration * 1000) / 1000.0);
+		sb.append(",\"framesPerPeak\":").append(this.framesPerPeak);
+		sb.append(",\"tags\":{");
+		boolean first = true;
+		for (Map.Entry<String, String> tag : this.tags.entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append('"').append(tag.getKey()).append("\":\"");
+			CommentHandler.escape(tag.getValue(), sb);
+			sb.append('"');
+		}
+		sb.append("},\"peaks\":[");
+		for (int i = 0; i < this.count; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(this.levels[i]);
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static String text(final byte[] bytes, final int offset, final int length) {
+		return new String(bytes, offset, length, ASCII);
+	}
+
+	@Override
+	public String toString() {
+		return "WaveformStage";
+	}
+
+}
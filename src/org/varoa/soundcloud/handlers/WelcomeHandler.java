@@ -1,35 +1,31 @@
 package org.varoa.soundcloud.handlers;
 
-import java.io.File;
-
 import org.apache.http.HttpRequest;
-import org.apache.http.entity.ContentType;
-import org.apache.http.nio.entity.NFileEntity;
 
 /**
- * Serves an uploaded file, which is essentially the same as
- * {@link HttpFileHandler} but serving an specific HTML file.
- * 
+ * Serves the upload form, which is essentially the same as
+ * {@link StaticHandler} but always serving an specific HTML file.
+ *
  * As pointed out in form.html, I just did a quick html file containing
- * all css, js, etc. But this could be easily generalized to read any 
- * requested file inside a public folder, etc. Short on time, so didn't
- * get into it.
+ * all css, js, etc. Anything else put in the public folder is served by
+ * the {@link StaticHandler}.
  */
-public class WelcomeHandler extends HttpFileHandler {
+public class WelcomeHandler extends StaticHandler {
 
-	private File welcomeForm = null;
+	private final String welcomeForm;
 
-	public WelcomeHandler(final File welcomeForm) {
+	/**
+	 * @param cache of the public folder
+	 * @param welcomeForm path of the form in the public folder
+	 * @param maxAge seconds clients may use their copy without asking
+	 */
+	public WelcomeHandler(final StaticAssetCache cache, final String welcomeForm, final int maxAge) {
+		super(cache, "", maxAge);
 		this.welcomeForm = welcomeForm;
 	}
-		
-	@Override
-	protected NFileEntity getNFileEntity(final File f) {
-		return new NFileEntity(f, ContentType.create("text/html"));
-	}
 
 	@Override
-	protected File getRequestedFile(final HttpRequest request) {
+	protected String getRequestedPath(final HttpRequest request) {
 		return this.welcomeForm;
 	}
 
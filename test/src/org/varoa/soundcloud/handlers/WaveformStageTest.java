@@ -0,0 +1,128 @@
+package org.varoa.soundcloud.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Checks the {@link WaveformStage} gives the same results however the
+ * content is split into buffers, in particular with a data chunk ending
+ * partway through a frame, which used to leave it stuck on the next buffer.
+ */
+public class WaveformStageTest {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	/** ms a single file may take, far more than it needs */
+	private static final long TIMEOUT = 5000;
+
+	public static void main(final String[] args) throws Exception {
+		// 16 bit stereo, the data chunk 2 frames and 3 bytes long, padded
+		byte[] wav = wav(2, 16, 11, "song");
+		String expected = run(wav, new int[] { wav.length });
+		check(expected.contains("\"title\":\"song\""), "tags after the data chunk are read: " + expected);
+		for (int split = 0; split <= wav.length; split++) {
+			String json = run(wav, new int[] { split, wav.length });
+			check(expected.equals(json), "split at " + split + ": " + json);
+		}
+		int[] bytes = new int[wav.length];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = i + 1;
+		}
+		check(expected.equals(run(wav, bytes)), "byte by byte");
+		System.out.println("WaveformStageTest: OK");
+	}
+
+	/**
+	 * Feed the file to a stage in buffers ending at the given offsets.
+	 * @return the results of the stage
+	 */
+	private static String run(final byte[] wav, final int[] ends) throws Exception {
+		final WaveformStage stage = new WaveformStage(10);
+		final Exception[] failure = new Exception[1];
+		Thread feeder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int start = 0;
+					for (int end : ends) {
+						stage.update(ByteBuffer.wrap(wav, start, end - start));
+						start = end;
+					}
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		});
+		feeder.setDaemon(true);
+		feeder.start();
+		feeder.join(TIMEOUT);
+		check(!feeder.isAlive(), "stuck on buffers ending at " + Arrays.toString(ends));
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return stage.toJson();
+	}
+
+	/**
+	 * A WAV file with a data chunk of the given size, followed by a LIST
+	 * INFO chunk naming it.
+	 */
+	private static byte[] wav(final int channels, final int bits, final int dataSize, final String title) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int blockAlign = channels * bits / 8;
+		ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		fmt.putShort((short) 1).putShort((short) channels).putInt(44100).putInt(44100 * blockAlign)
+			.putShort((short) blockAlign).putShort((short) bits);
+		chunk(body, "fmt ", fmt.array());
+		byte[] data = new byte[dataSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 37);
+		}
+		chunk(body, "data", data);
+		ByteArrayOutputStream info = new ByteArrayOutputStream();
+		info.write('I');
+		info.write('N');
+		info.write('F');
+		info.write('O');
+		byte[] name = (title + "\0").getBytes(ASCII);
+		chunk(info, "INAM", name);
+		chunk(body, "LIST", info.toByteArray());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write('R');
+		out.write('I');
+		out.write('F');
+		out.write('F');
+		writeInt(out, 4 + body.size());
+		out.write('W');
+		out.write('A');
+		out.write('V');
+		out.write('E');
+		byte[] rest = body.toByteArray();
+		out.write(rest, 0, rest.length);
+		return out.toByteArray();
+	}
+
+	private static void chunk(final ByteArrayOutputStream out, final String id, final byte[] content) {
+		byte[] name = id.getBytes(ASCII);
+		out.write(name, 0, name.length);
+		writeInt(out, content.length);
+		out.write(content, 0, content.length);
+		if ((content.length & 1) != 0) {
+			out.write(0);
+		}
+	}
+
+	private static void writeInt(final ByteArrayOutputStream out, final int value) {
+		for (int i = 0; i < 4; i++) {
+			out.write(value >>> (8 * i));
+		}
+	}
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}